@@ -0,0 +1,57 @@
+package io.buybrain.hamq;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Consumer;
+import com.rabbitmq.client.Envelope;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+
+/**
+ * Cost of dispatching a delivery through the consumer wrapper of a channel to the callback, with and without
+ * acknowledging it
+ */
+@State(Scope.Thread)
+public class ConsumeBenchmark {
+    @Param({"false", "true"})
+    public boolean ack;
+
+    @Param({"1", "100"})
+    public int ackBatchSize;
+
+    private Channel channel;
+    private Consumer consumer;
+    private long deliveryTag;
+    private final AMQP.BasicProperties properties = new AMQP.BasicProperties();
+    private final byte[] body = new byte[100];
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        StandInBackend backend = new StandInBackend();
+        channel = new Connection(new Config(), backend).createChannel();
+        channel.consume(
+            new ConsumeSpec("benchmark", delivery -> {
+                if (ack) {
+                    delivery.ack();
+                }
+            }).withAckBatchSize(ackBatchSize)
+        );
+        consumer = backend.getLastConsumer();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        channel.close();
+    }
+
+    @Benchmark
+    public void deliver() throws IOException {
+        consumer.handleDelivery("benchmark", new Envelope(++deliveryTag, false, "", "benchmark"), properties, body);
+    }
+}
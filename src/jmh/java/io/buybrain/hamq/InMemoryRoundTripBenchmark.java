@@ -0,0 +1,51 @@
+package io.buybrain.hamq;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of publishing a message and having it consumed and acked, through a broker running in the same process
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class InMemoryRoundTripBenchmark {
+    private Channel publisher;
+    private Channel consumer;
+    private PublishSpec message;
+    private final Semaphore consumed = new Semaphore(0);
+
+    @Setup
+    public void setUp() {
+        Connection connection = Connections.createInMemory(new Config(), new InMemoryBroker());
+        publisher = connection.createChannel();
+        publisher.queueDeclare(new QueueSpec("benchmark"));
+        consumer = connection.createChannel();
+        consumer.consume(new ConsumeSpec("benchmark", delivery -> {
+            delivery.ack();
+            consumed.release();
+        }));
+        message = PublishSpec.queue("benchmark", new byte[100]);
+    }
+
+    @TearDown
+    public void tearDown() {
+        consumer.close();
+        publisher.close();
+    }
+
+    @Benchmark
+    public void roundTrip() throws InterruptedException {
+        publisher.publish(message);
+        consumed.acquire();
+    }
+}
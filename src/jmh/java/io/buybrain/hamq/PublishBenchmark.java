@@ -0,0 +1,61 @@
+package io.buybrain.hamq;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * Per-message cost of publishing through HAmq, from a single thread and from multiple threads
+ */
+@State(Scope.Benchmark)
+public class PublishBenchmark {
+    private Connection connection;
+    private Channel channel;
+    private PublishSpec message;
+    private PublishTemplate template;
+    private final byte[] body = new byte[100];
+
+    @Setup
+    public void setUp() {
+        connection = new Connection(new Config(), new StandInBackend());
+        channel = connection.createChannel();
+        channel.queueDeclare(new QueueSpec("benchmark"));
+        message = PublishSpec.queue("benchmark", new byte[100]);
+        template = new PublishTemplate(PublishSpec.queue("benchmark", null).withHeader("type", "benchmark"));
+    }
+
+    @Benchmark
+    public void publish() {
+        channel.publish(message);
+    }
+
+    @Benchmark
+    public void publishNewSpec() {
+        channel.publish(PublishSpec.queue("benchmark", new byte[100]).withHeader("type", "benchmark"));
+    }
+
+    @Benchmark
+    public void publishTemplate() {
+        channel.publish(template, body);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void publishSharedChannel() {
+        channel.publish(message);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void publishPooled() {
+        connection.publish(message);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void publishPooledTemplate() {
+        connection.publish(template, body);
+    }
+}
@@ -0,0 +1,49 @@
+package io.buybrain.hamq;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end time of recovering a channel with a large topology after a network error, excluding backoff
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ResetBenchmark {
+    @Param({"10", "1000"})
+    public int topologySize;
+
+    private StandInBackend backend;
+    private Channel channel;
+    private PublishSpec message;
+
+    @Setup
+    public void setUp() {
+        backend = new StandInBackend();
+        channel = new Connection(new Config(), backend).createChannel();
+        channel.prefetch(new PrefetchSpec(100));
+        for (int i = 0; i < topologySize; i++) {
+            channel.exchangeDeclare(new ExchangeSpec("exchange-" + i, "topic"));
+            channel.queueDeclare(new QueueSpec("queue-" + i));
+            channel.queueBind(new BindSpec("queue-" + i, "exchange-" + i).withRoutingKey("#"));
+            channel.consume(new ConsumeSpec("queue-" + i, Delivery::ack));
+        }
+        message = PublishSpec.queue("queue-0", new byte[100])
+            .withRetryPolicy(new RetryPolicy().withInitialDelay(Duration.ZERO));
+    }
+
+    @Benchmark
+    public void reset() {
+        backend.failNextPublish();
+        channel.publish(message);
+    }
+}
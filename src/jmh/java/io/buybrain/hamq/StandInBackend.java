@@ -0,0 +1,177 @@
+package io.buybrain.hamq;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.BlockedListener;
+import com.rabbitmq.client.ConfirmListener;
+import com.rabbitmq.client.Consumer;
+
+import java.io.IOException;
+import java.net.SocketException;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Backend that accepts every operation without doing any work, so benchmarks measure the overhead of HAmq itself
+ * instead of that of a broker or the network
+ */
+class StandInBackend implements Backend {
+    private final AtomicBoolean failNextPublish = new AtomicBoolean();
+    private volatile Consumer lastConsumer;
+
+    @Override
+    public BackendConnection newConnection(Config config) {
+        return new BackendConnection() {
+            @Override
+            public BackendChannel newChannel() {
+                return new StandInChannel();
+            }
+
+            @Override
+            public void addBlockedListener(BlockedListener listener) {
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    @Override
+    public void close() {
+    }
+
+    /**
+     * Make the next publish fail with a network error, forcing the HAmq channel to reset
+     */
+    void failNextPublish() {
+        failNextPublish.set(true);
+    }
+
+    /**
+     * @return the consumer that was registered most recently
+     */
+    Consumer getLastConsumer() {
+        return lastConsumer;
+    }
+
+    private class StandInChannel implements BackendChannel {
+        private long seqNo = 1;
+
+        @Override
+        public void exchangeDeclare(
+            String exchange,
+            String type,
+            boolean durable,
+            boolean autoDelete,
+            boolean internal,
+            Map<String, Object> arguments
+        ) {
+        }
+
+        @Override
+        public void queueDeclare(
+            String queue,
+            boolean durable,
+            boolean exclusive,
+            boolean autoDelete,
+            Map<String, Object> arguments
+        ) {
+        }
+
+        @Override
+        public void exchangeDeclareNoWait(
+            String exchange,
+            String type,
+            boolean durable,
+            boolean autoDelete,
+            boolean internal,
+            Map<String, Object> arguments
+        ) {
+        }
+
+        @Override
+        public void queueDeclareNoWait(
+            String queue,
+            boolean durable,
+            boolean exclusive,
+            boolean autoDelete,
+            Map<String, Object> arguments
+        ) {
+        }
+
+        @Override
+        public void queueBind(String queue, String exchange, String routingKey, Map<String, Object> arguments) {
+        }
+
+        @Override
+        public void queueBindNoWait(String queue, String exchange, String routingKey, Map<String, Object> arguments) {
+        }
+
+        @Override
+        public void basicQos(int prefetch) {
+        }
+
+        @Override
+        public void basicQos(int prefetch, boolean global) {
+        }
+
+        @Override
+        public void basicPublish(
+            String exchange,
+            String routingKey,
+            boolean mandatory,
+            AMQP.BasicProperties props,
+            byte[] body
+        ) throws IOException {
+            if (failNextPublish.compareAndSet(true, false)) {
+                throw new SocketException("Injected failure");
+            }
+            seqNo++;
+        }
+
+        @Override
+        public void basicConsume(
+            String queue,
+            String consumerTag,
+            boolean noLocal,
+            boolean exclusive,
+            Map<String, Object> arguments,
+            Consumer callback
+        ) {
+            lastConsumer = callback;
+        }
+
+        @Override
+        public void basicAck(long deliveryTag) {
+        }
+
+        @Override
+        public void basicAck(long deliveryTag, boolean multiple) {
+        }
+
+        @Override
+        public void basicNack(long deliveryTag) {
+        }
+
+        @Override
+        public void basicCancel(String consumerTag) {
+        }
+
+        @Override
+        public void confirmSelect() {
+        }
+
+        @Override
+        public long getNextPublishSeqNo() {
+            return seqNo;
+        }
+
+        @Override
+        public void addConfirmListener(ConfirmListener listener) {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
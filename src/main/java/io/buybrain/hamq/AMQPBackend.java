@@ -5,10 +5,15 @@ import com.rabbitmq.client.impl.StrictExceptionHandler;
 import lombok.NonNull;
 import lombok.val;
 
+import java.util.concurrent.ExecutorService;
+
 /**
  * AMQP backend that uses the Java RabbitMQ client library for communication
  */
 class AMQPBackend implements Backend {
+    // Shared by all connections of this backend, so reconnecting doesn't create a new executor every time
+    private ExecutorService sharedExecutor;
+
     /**
      * Create a new RabbitMQ client connection
      *
@@ -26,7 +31,30 @@ class AMQPBackend implements Backend {
         factory.setVirtualHost(config.getVhost());
         factory.setAutomaticRecoveryEnabled(false);
         factory.setExceptionHandler(new StrictExceptionHandler());
+        if (config.getExecutionMode() == ExecutionMode.VIRTUAL_THREADS) {
+            factory.setSharedExecutor(sharedExecutor());
+        }
 
         return new AMQPBackendConnection(factory.newConnection());
     }
+
+    /**
+     * Shut down the executor that is shared by the connections of this backend, if one was created
+     */
+    @Override
+    public synchronized void close() {
+        if (sharedExecutor != null) {
+            sharedExecutor.shutdown();
+        }
+    }
+
+    /**
+     * @return the executor for virtual threads shared by all connections of this backend, created on first use
+     */
+    synchronized ExecutorService sharedExecutor() {
+        if (sharedExecutor == null) {
+            sharedExecutor = VirtualThreads.newExecutor();
+        }
+        return sharedExecutor;
+    }
 }
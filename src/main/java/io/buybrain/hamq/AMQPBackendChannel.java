@@ -1,6 +1,7 @@
 package io.buybrain.hamq;
 
 import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.ConfirmListener;
 import com.rabbitmq.client.Consumer;
 import lombok.NonNull;
 import lombok.RequiredArgsConstructor;
@@ -30,6 +31,18 @@ class AMQPBackendChannel implements BackendChannel {
         channel.exchangeDeclare(exchange, type, durable, autoDelete, internal, arguments);
     }
 
+    @Override
+    public void exchangeDeclareNoWait(
+        @NonNull String exchange,
+        @NonNull String type,
+        boolean durable,
+        boolean autoDelete,
+        boolean internal,
+        @NonNull Map<String, Object> arguments
+    ) throws IOException {
+        channel.exchangeDeclareNoWait(exchange, type, durable, autoDelete, internal, arguments);
+    }
+
     @Override
     public void queueDeclare(
         @NonNull String queue,
@@ -41,6 +54,17 @@ class AMQPBackendChannel implements BackendChannel {
         channel.queueDeclare(queue, durable, exclusive, autoDelete, arguments);
     }
 
+    @Override
+    public void queueDeclareNoWait(
+        @NonNull String queue,
+        boolean durable,
+        boolean exclusive,
+        boolean autoDelete,
+        @NonNull Map<String, Object> arguments
+    ) throws IOException {
+        channel.queueDeclareNoWait(queue, durable, exclusive, autoDelete, arguments);
+    }
+
     @Override
     public void queueBind(
         @NonNull String queue,
@@ -51,11 +75,26 @@ class AMQPBackendChannel implements BackendChannel {
         channel.queueBind(queue, exchange, routingKey, arguments);
     }
 
+    @Override
+    public void queueBindNoWait(
+        @NonNull String queue,
+        @NonNull String exchange,
+        @NonNull String routingKey,
+        @NonNull Map<String, Object> arguments
+    ) throws IOException {
+        channel.queueBindNoWait(queue, exchange, routingKey, arguments);
+    }
+
     @Override
     public void basicQos(int prefetch) throws IOException {
         channel.basicQos(prefetch);
     }
 
+    @Override
+    public void basicQos(int prefetch, boolean global) throws IOException {
+        channel.basicQos(prefetch, global);
+    }
+
     @Override
     public void basicPublish(
         @NonNull String exchange,
@@ -84,6 +123,11 @@ class AMQPBackendChannel implements BackendChannel {
         channel.basicAck(deliveryTag, false);
     }
 
+    @Override
+    public void basicAck(long deliveryTag, boolean multiple) throws IOException {
+        channel.basicAck(deliveryTag, multiple);
+    }
+
     @Override
     public void basicNack(long deliveryTag) throws IOException {
         channel.basicNack(deliveryTag, false, false);
@@ -94,6 +138,21 @@ class AMQPBackendChannel implements BackendChannel {
         channel.basicCancel(consumerTag);
     }
 
+    @Override
+    public void confirmSelect() throws IOException {
+        channel.confirmSelect();
+    }
+
+    @Override
+    public long getNextPublishSeqNo() {
+        return channel.getNextPublishSeqNo();
+    }
+
+    @Override
+    public void addConfirmListener(@NonNull ConfirmListener listener) {
+        channel.addConfirmListener(listener);
+    }
+
     @Override
     public void close() throws IOException {
         rethrow(() -> channel.close());
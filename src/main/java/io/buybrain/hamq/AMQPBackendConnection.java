@@ -1,5 +1,6 @@
 package io.buybrain.hamq;
 
+import com.rabbitmq.client.BlockedListener;
 import lombok.NonNull;
 import lombok.RequiredArgsConstructor;
 
@@ -23,6 +24,11 @@ class AMQPBackendConnection implements BackendConnection {
         return new AMQPBackendChannel(connection.createChannel());
     }
 
+    @Override
+    public void addBlockedListener(@NonNull BlockedListener listener) {
+        connection.addBlockedListener(listener);
+    }
+
     @Override
     public void close() throws IOException {
         connection.close();
@@ -0,0 +1,169 @@
+package io.buybrain.hamq;
+
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Acknowledges deliveries of a single backend channel, combining acknowledgements of consumers that enabled ack
+ * coalescing into a single multiple=true ack.
+ * <p>
+ * Delivery tags are shared by all consumers of a channel and a multiple ack settles every tag up to the given one, so
+ * all acks and nacks on the channel pass through here. A multiple ack is only sent for the highest tag of which all
+ * lower tags are settled, which makes it safe when deliveries complete out of order. Coalesced acks that are stuck
+ * behind a delivery that is still being processed are sent individually once the time window passes.
+ */
+@Slf4j
+class AckCoalescer {
+    @Getter private final BackendChannel channel;
+    private final ScheduledExecutorService scheduler;
+
+    // All tags up to and including this one are settled
+    private long settled;
+    // Highest settled tag that still has to be acked, or 0 if there is none
+    private long flushable;
+    // Settled tags above the contiguous range, mapped to whether they still have to be acked
+    private final TreeMap<Long, Boolean> ahead = new TreeMap<>();
+    // Number of acks that still have to be sent within and above the contiguous range
+    private int pendingContiguous;
+    private int pendingAhead;
+    private ScheduledFuture<?> scheduledFlush;
+    // Once closed, acks are sent right away instead of being scheduled for a flush
+    private boolean closed;
+
+    AckCoalescer(@NonNull BackendChannel channel, @NonNull ScheduledExecutorService scheduler) {
+        this.channel = channel;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Create an acknowledger for deliveries of a consumer
+     *
+     * @param spec the consume specification that holds the coalescing settings
+     * @return the acknowledger
+     */
+    Acknowledger forConsumer(@NonNull ConsumeSpec spec) {
+        return new Acknowledger() {
+            @Override
+            public void ack(Delivery delivery) throws IOException {
+                AckCoalescer.this.ack(delivery.getEnvelope().getDeliveryTag(), spec);
+            }
+
+            @Override
+            public void nack(Delivery delivery) throws IOException {
+                AckCoalescer.this.nack(delivery.getEnvelope().getDeliveryTag());
+            }
+        };
+    }
+
+    synchronized void ack(long deliveryTag, @NonNull ConsumeSpec spec) throws IOException {
+        if (spec.getAckBatchSize() <= 1 || closed) {
+            channel.basicAck(deliveryTag);
+            settle(deliveryTag, false);
+            return;
+        }
+
+        settle(deliveryTag, true);
+        if (pendingContiguous + pendingAhead >= spec.getAckBatchSize()) {
+            flushContiguous();
+        }
+        if (pendingContiguous + pendingAhead > 0 && scheduledFlush == null) {
+            scheduledFlush = scheduler.schedule(
+                this::scheduledFlush,
+                spec.getAckBatchWindow().toMillis(),
+                MILLISECONDS
+            );
+        }
+    }
+
+    synchronized void nack(long deliveryTag) throws IOException {
+        channel.basicNack(deliveryTag);
+        settle(deliveryTag, false);
+    }
+
+    /**
+     * Send all acknowledgements that are still pending
+     */
+    synchronized void flush() throws IOException {
+        if (scheduledFlush != null) {
+            scheduledFlush.cancel(false);
+            scheduledFlush = null;
+        }
+        flushContiguous();
+        for (val entry : ahead.entrySet()) {
+            if (entry.getValue()) {
+                channel.basicAck(entry.getKey());
+                entry.setValue(false);
+            }
+        }
+        pendingAhead = 0;
+    }
+
+    /**
+     * Send all acknowledgements that are still pending and cancel the scheduled flush, for when the channel is about to
+     * be closed or replaced. Acknowledgements that arrive afterwards are sent right away.
+     */
+    synchronized void close() {
+        closed = true;
+        try {
+            flush();
+        } catch (Exception ex) {
+            // The channel is most likely closed already, in which case the broker will redeliver the messages
+            log.debug("Could not flush coalesced acknowledgements while closing", ex);
+        }
+    }
+
+    private synchronized void scheduledFlush() {
+        scheduledFlush = null;
+        try {
+            flush();
+        } catch (Exception ex) {
+            // The channel is most likely closed, in which case the broker will redeliver the messages
+            log.warn("Error while flushing coalesced acknowledgements", ex);
+        }
+    }
+
+    private void settle(long deliveryTag, boolean needsAck) {
+        if (deliveryTag != settled + 1) {
+            if (deliveryTag > settled) {
+                ahead.put(deliveryTag, needsAck);
+                if (needsAck) {
+                    pendingAhead++;
+                }
+            }
+            return;
+        }
+        settled = deliveryTag;
+        if (needsAck) {
+            flushable = deliveryTag;
+            pendingContiguous++;
+        }
+        while (!ahead.isEmpty() && ahead.firstKey() == settled + 1) {
+            Map.Entry<Long, Boolean> next = ahead.pollFirstEntry();
+            settled = next.getKey();
+            if (next.getValue()) {
+                flushable = settled;
+                pendingContiguous++;
+                pendingAhead--;
+            }
+        }
+    }
+
+    private void flushContiguous() throws IOException {
+        if (flushable == 0) {
+            return;
+        }
+        channel.basicAck(flushable, true);
+        flushable = 0;
+        pendingContiguous = 0;
+    }
+}
@@ -0,0 +1,12 @@
+package io.buybrain.hamq;
+
+import java.io.IOException;
+
+/**
+ * Strategy for acknowledging deliveries, as used by {@link Delivery#ack()} and {@link Delivery#nack()}
+ */
+interface Acknowledger {
+    void ack(Delivery delivery) throws IOException;
+
+    void nack(Delivery delivery) throws IOException;
+}
@@ -0,0 +1,100 @@
+package io.buybrain.hamq;
+
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.Setter;
+import lombok.val;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Tunes the prefetch amount of a channel to the throughput of its consumers, as configured by an adaptive
+ * {@link PrefetchSpec}. Every delivery reports how long its callback took, and how long it took from receiving it to
+ * acknowledging it. The difference is the time the delivery waited for a worker, which divided by the processing time
+ * is the number of deliveries that were queued per worker. When that exceeds the target, consumers hoard deliveries
+ * that other instances could be processing, so the amount is lowered. When deliveries don't wait but the whole
+ * prefetch window is in use, the window is what limits throughput, so the amount is raised.
+ */
+class AdaptivePrefetch {
+    // Fraction of the prefetch window that has to be in use for the window to be considered the bottleneck
+    private static final double SATURATED = 0.8;
+
+    private final PrefetchSpec spec;
+    private final LongSupplier nanoTime;
+    private final LongAdder processed = new LongAdder();
+    private final LongAdder processingNanos = new LongAdder();
+    private final LongAdder acked = new LongAdder();
+    private final LongAdder ackNanos = new LongAdder();
+    private long measuredSince;
+    // The amount that is currently applied to the channel
+    @Getter @Setter private volatile int amount;
+
+    AdaptivePrefetch(@NonNull PrefetchSpec spec) {
+        this(spec, System::nanoTime);
+    }
+
+    AdaptivePrefetch(@NonNull PrefetchSpec spec, @NonNull LongSupplier nanoTime) {
+        if (!spec.isAdaptive()) {
+            throw new IllegalArgumentException("Prefetch specification is not adaptive");
+        }
+        this.spec = spec;
+        this.nanoTime = nanoTime;
+        amount = clamp(spec.getAmount());
+        measuredSince = nanoTime.getAsLong();
+    }
+
+    /**
+     * @param nanos the time it took to process a delivery
+     */
+    void recordProcessing(long nanos) {
+        processed.increment();
+        processingNanos.add(nanos);
+    }
+
+    /**
+     * @param nanos the time between receiving a delivery and acknowledging it
+     */
+    void recordAck(long nanos) {
+        acked.increment();
+        ackNanos.add(nanos);
+    }
+
+    /**
+     * Calculate the prefetch amount to use from the measurements since the previous call
+     *
+     * @return the new amount, or the current amount when it should stay the same
+     */
+    synchronized int next() {
+        val now = nanoTime.getAsLong();
+        val interval = now - measuredSince;
+        measuredSince = now;
+        val processedCount = processed.sumThenReset();
+        val processingTotal = processingNanos.sumThenReset();
+        val ackedCount = acked.sumThenReset();
+        val ackTotal = ackNanos.sumThenReset();
+        if (processedCount == 0 || ackedCount == 0 || interval <= 0) {
+            // Nothing to go by, the queue is probably empty
+            return amount;
+        }
+
+        val processing = Math.max(1.0, (double) processingTotal / processedCount);
+        val latency = (double) ackTotal / ackedCount;
+        val queuedPerWorker = Math.max(0, latency - processing) / processing;
+        // Little's law: the average number of unacknowledged deliveries
+        val inFlight = ackedCount * latency / interval;
+
+        if (queuedPerWorker > spec.getTargetQueuedPerWorker()) {
+            val factor = (spec.getTargetQueuedPerWorker() + 1) / (queuedPerWorker + 1);
+            return clamp((int) Math.ceil(amount * factor));
+        }
+        if (inFlight >= SATURATED * amount) {
+            return clamp(amount * 2);
+        }
+        return amount;
+    }
+
+    private int clamp(int value) {
+        return Math.max(spec.getMinAmount(), Math.min(spec.getMaxAmount(), value));
+    }
+}
@@ -13,4 +13,9 @@ interface Backend {
      * @throws Exception when an error occurred during connecting
      */
     BackendConnection newConnection(Config config) throws Exception;
+
+    /**
+     * Release the resources shared by all connections of this backend. Connections created afterwards may fail.
+     */
+    void close();
 }
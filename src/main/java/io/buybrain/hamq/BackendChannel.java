@@ -1,6 +1,7 @@
 package io.buybrain.hamq;
 
 import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.ConfirmListener;
 import com.rabbitmq.client.Consumer;
 import lombok.NonNull;
 
@@ -21,6 +22,15 @@ interface BackendChannel extends Closeable {
         Map<String, Object> arguments
     ) throws IOException;
 
+    void exchangeDeclareNoWait(
+        String exchange,
+        String type,
+        boolean durable,
+        boolean autoDelete,
+        boolean internal,
+        Map<String, Object> arguments
+    ) throws IOException;
+
     void queueDeclare(
         String queue,
         boolean durable,
@@ -29,6 +39,14 @@ interface BackendChannel extends Closeable {
         Map<String, Object> arguments
     ) throws IOException;
 
+    void queueDeclareNoWait(
+        String queue,
+        boolean durable,
+        boolean exclusive,
+        boolean autoDelete,
+        Map<String, Object> arguments
+    ) throws IOException;
+
     void queueBind(
         String queue,
         String exchange,
@@ -36,8 +54,17 @@ interface BackendChannel extends Closeable {
         Map<String, Object> arguments
     ) throws IOException;
 
+    void queueBindNoWait(
+        String queue,
+        String exchange,
+        String routingKey,
+        Map<String, Object> arguments
+    ) throws IOException;
+
     void basicQos(int prefetch) throws IOException;
 
+    void basicQos(int prefetch, boolean global) throws IOException;
+
     void basicPublish(
         String exchange,
         String routingKey,
@@ -57,7 +84,15 @@ interface BackendChannel extends Closeable {
 
     void basicAck(long deliveryTag) throws IOException;
 
+    void basicAck(long deliveryTag, boolean multiple) throws IOException;
+
     void basicNack(long deliveryTag) throws IOException;
 
     void basicCancel(String consumerTag) throws IOException;
+
+    void confirmSelect() throws IOException;
+
+    long getNextPublishSeqNo();
+
+    void addConfirmListener(ConfirmListener listener);
 }
@@ -1,5 +1,7 @@
 package io.buybrain.hamq;
 
+import com.rabbitmq.client.BlockedListener;
+
 import java.io.Closeable;
 import java.io.IOException;
 
@@ -14,4 +16,11 @@ interface BackendConnection extends Closeable {
      * @throws IOException when an error occured during channel creation
      */
     BackendChannel newChannel() throws IOException;
+
+    /**
+     * Register a listener for the broker blocking and unblocking the connection
+     *
+     * @param listener the listener
+     */
+    void addBlockedListener(BlockedListener listener);
 }
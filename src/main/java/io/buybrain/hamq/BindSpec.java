@@ -12,7 +12,7 @@ import static java.util.Collections.emptyMap;
  * Specification for declaring queue bindings as used by {@link Channel#queueBind}.
  */
 @Value
-@EqualsAndHashCode(callSuper = true)
+@EqualsAndHashCode(callSuper = false)
 @Wither
 @AllArgsConstructor
 public class BindSpec extends OperationSpec<BindSpec> {
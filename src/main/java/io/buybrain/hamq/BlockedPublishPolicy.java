@@ -0,0 +1,18 @@
+package io.buybrain.hamq;
+
+/**
+ * What to do when a message is published while the broker blocked the connection, for instance because of a memory or
+ * disk alarm. Channels with a publish spool are not affected, since the spool holds messages until the broker accepts
+ * them again.
+ */
+public enum BlockedPublishPolicy {
+    /**
+     * Wait until the broker unblocks the connection, or until {@link Config#getBlockedPublishTimeout()} passed, after
+     * which a {@link ConnectionBlockedException} is thrown
+     */
+    WAIT,
+    /**
+     * Throw a {@link ConnectionBlockedException} right away
+     */
+    FAIL
+}
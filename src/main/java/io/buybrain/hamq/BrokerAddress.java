@@ -0,0 +1,74 @@
+package io.buybrain.hamq;
+
+import lombok.NonNull;
+import lombok.Value;
+import lombok.val;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Host and port of a single broker node, as used by {@link Config#getAddresses()}
+ */
+@Value
+public class BrokerAddress {
+    @NonNull String host;
+    int port;
+
+    /**
+     * Parse an address in the form {@code host} or {@code host:port}. IPv6 addresses with a port have to be enclosed
+     * in brackets, like {@code [::1]:5672}.
+     *
+     * @param address     the address to parse
+     * @param defaultPort the port to use when the address doesn't specify one
+     * @return the parsed address
+     */
+    public static BrokerAddress parse(@NonNull String address, int defaultPort) {
+        val trimmed = address.trim();
+        if (trimmed.startsWith("[")) {
+            val end = trimmed.indexOf(']');
+            if (end < 0) {
+                throw new IllegalArgumentException("Invalid broker address '" + address + "'");
+            }
+            val host = trimmed.substring(1, end);
+            val rest = trimmed.substring(end + 1);
+            return new BrokerAddress(host, rest.startsWith(":") ? parsePort(rest.substring(1), address) : defaultPort);
+        }
+        val colon = trimmed.indexOf(':');
+        if (colon < 0 || colon != trimmed.lastIndexOf(':')) {
+            // Either no port, or an IPv6 address without one
+            return new BrokerAddress(trimmed, defaultPort);
+        }
+        return new BrokerAddress(trimmed.substring(0, colon), parsePort(trimmed.substring(colon + 1), address));
+    }
+
+    /**
+     * Parse a comma separated list of addresses, such as {@code node1:5672,node2:5672,node3}
+     *
+     * @param addresses   the addresses to parse
+     * @param defaultPort the port to use for addresses that don't specify one
+     * @return the parsed addresses, in the same order
+     */
+    public static List<BrokerAddress> parseList(@NonNull String addresses, int defaultPort) {
+        val result = new ArrayList<BrokerAddress>();
+        for (val address : addresses.split(",")) {
+            if (!address.trim().isEmpty()) {
+                result.add(parse(address, defaultPort));
+            }
+        }
+        return result;
+    }
+
+    private static int parsePort(String port, String address) {
+        try {
+            return Integer.parseInt(port);
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Invalid port in broker address '" + address + "'", ex);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return (host.contains(":") ? "[" + host + "]" : host) + ":" + port;
+    }
+}
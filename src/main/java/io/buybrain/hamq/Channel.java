@@ -1,9 +1,11 @@
 package io.buybrain.hamq;
 
 import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.ConfirmListener;
 import com.rabbitmq.client.Envelope;
 import com.rabbitmq.client.ShutdownSignalException;
 import io.buybrain.util.function.ThrowingConsumer;
+import lombok.Getter;
 import lombok.NonNull;
 import lombok.RequiredArgsConstructor;
 import lombok.SneakyThrows;
@@ -11,16 +13,26 @@ import lombok.extern.slf4j.Slf4j;
 import lombok.val;
 
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 import static io.buybrain.util.Result.trying;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
 
 /**
  * HAmq channel representation. All methods will be automatically retried in case of network or broker failures until
@@ -30,20 +42,46 @@ import static io.buybrain.util.Result.trying;
 @RequiredArgsConstructor
 public class Channel {
     @NonNull private final Connection connection;
+    @NonNull private final ConnectionSlot slot;
+    // Connection for publishing, or null when publishing shares the channel of this channel's slot
+    private final ConnectionSlot publishSlot;
     @NonNull private final Retryer retryer;
-    private BackendChannel channel;
+    // Backend channels in use, or null when they have to be opened. They are read without locking, and replaced as a
+    // whole through compare-and-set when they are reset.
+    private final AtomicReference<Generation> current = new AtomicReference<>();
+    private final AtomicReference<Generation> currentPublish = new AtomicReference<>();
+    private AckCoalescer acks;
 
     private static final AtomicInteger tagCounter = new AtomicInteger();
+    private static final AtomicLong generationCounter = new AtomicLong();
+    // Placeholder specification for restoring the topology, so it is retried with the default retry policy
+    private static final OperationSpec<?> TOPOLOGY_RESTORE = new OperationSpec<>();
 
     // The following fields capture the state created through this channel, and will be used for recreating channels
-    // after reconnect events
-    private final List<ExchangeSpec> exchanges = new ArrayList<>();
-    private final List<QueueSpec> queues = new ArrayList<>();
-    private final List<BindSpec> binds = new ArrayList<>();
+    // after reconnect events. Exchanges, queues and bindings are restored by the connection slot instead, except for
+    // the auto-delete ones that disappear when this channel's consumers are cancelled.
+    private final TopologyRegistry topology = new TopologyRegistry();
     private final Map<String, ConsumeSpec> consumers = new HashMap<>();
+    private final Map<String, DeliveryDispatcher> dispatchers = new ConcurrentHashMap<>();
+    private final Map<String, DeduplicationCache> deduplication = new ConcurrentHashMap<>();
     private PrefetchSpec prefetchSpec;
+    // Tuning of the prefetch amount and its periodic adjustment, when prefetching is adaptive
+    private volatile AdaptivePrefetch adaptivePrefetch;
+    private ScheduledFuture<?> prefetchAdjuster;
+    private ConfirmSpec confirmSpec;
+    private volatile PublisherConfirms confirms;
+    private volatile PublishSpool spool;
+    private Thread spoolDrainer;
+
+    private boolean released;
+    // Whether the current thread is resetting this channel. Operations it performs are part of recovering, and when
+    // they fail for good, they don't start another reset.
+    private final ThreadLocal<Boolean> resetting = ThreadLocal.withInitial(() -> false);
+    // Number of resets in progress on any thread, during which prefetch adjustments are left to the reset
+    private final AtomicInteger resets = new AtomicInteger();
 
     private final Lock getChannelLock = new ReentrantLock();
+    private final Object acksLock = new Object();
 
     /**
      * Declare an exchange. Will create the exchange if it doesn't exist, or do nothing if it already exists with the
@@ -52,19 +90,9 @@ public class Channel {
      * @param spec the declare specification
      */
     public synchronized void exchangeDeclare(@NonNull ExchangeSpec spec) {
-        doExchangeDeclare(spec);
-        exchanges.add(spec);
-    }
-
-    private void doExchangeDeclare(@NonNull ExchangeSpec spec) {
-        perform(chan -> chan.exchangeDeclare(
-            spec.getName(),
-            spec.getType(),
-            spec.isDurable(),
-            spec.isAutoDelete(),
-            spec.isInternal(),
-            spec.getArgs()
-        ), spec);
+        perform(chan -> TopologyRegistry.declareExchange(chan, spec, true), spec);
+        slot.getTopology().add(spec);
+        topology.add(spec);
     }
 
     /**
@@ -74,18 +102,9 @@ public class Channel {
      * @param spec the declare specification
      */
     public synchronized void queueDeclare(@NonNull QueueSpec spec) {
-        doQueueDeclare(spec);
-        queues.add(spec);
-    }
-
-    private void doQueueDeclare(@NonNull QueueSpec spec) {
-        perform(chan -> chan.queueDeclare(
-            spec.getName(),
-            spec.isDurable(),
-            spec.isExclusive(),
-            spec.isAutoDelete(),
-            spec.getArgs()
-        ), spec);
+        perform(chan -> TopologyRegistry.declareQueue(chan, spec, true), spec);
+        slot.getTopology().add(spec);
+        topology.add(spec);
     }
 
     /**
@@ -95,31 +114,235 @@ public class Channel {
      * @param spec the bind specification
      */
     public synchronized void queueBind(@NonNull BindSpec spec) {
-        doQueueBind(spec);
-        binds.add(spec);
-    }
-
-    private void doQueueBind(@NonNull BindSpec spec) {
-        perform(chan -> chan.queueBind(
-            spec.getQueue(),
-            spec.getExchange(),
-            spec.getRoutingKey(),
-            spec.getArgs()
-        ), spec);
+        perform(chan -> TopologyRegistry.bindQueue(chan, spec, true), spec);
+        slot.getTopology().add(spec);
+        topology.add(spec);
     }
 
     /**
-     * Specify the maximum number of messages that may be prefetched for this channel
+     * Specify the maximum number of messages that may be prefetched for this channel. When the specification is
+     * adaptive, call this before consuming so that all consumers are measured.
      *
      * @param spec the prefetch specification
      */
     public void prefetch(@NonNull PrefetchSpec spec) {
-        doPrefetch(spec);
+        val prefetcher = spec.isAdaptive() ? new AdaptivePrefetch(spec) : null;
+        doPrefetch(spec, prefetcher);
+        if (prefetcher == null && adaptivePrefetch != null) {
+            // Lift the limit on the whole channel that the previous adaptive specification applied
+            perform(chan -> chan.basicQos(0, true), spec);
+        }
         prefetchSpec = spec;
+        setAdaptivePrefetch(prefetcher);
     }
 
-    private void doPrefetch(PrefetchSpec spec) {
-        perform(chan -> chan.basicQos(spec.getAmount()), spec);
+    /**
+     * Apply a prefetch specification. The limit per consumer only applies to consumers that start afterwards, so an
+     * adaptive amount is applied as a limit on the whole channel instead, with the upper bound per consumer.
+     */
+    private void doPrefetch(PrefetchSpec spec, AdaptivePrefetch prefetcher) {
+        if (prefetcher == null) {
+            perform(chan -> chan.basicQos(spec.getAmount()), spec);
+        } else {
+            perform(chan -> {
+                chan.basicQos(spec.getMaxAmount());
+                chan.basicQos(prefetcher.getAmount(), true);
+            }, spec);
+        }
+    }
+
+    private synchronized void setAdaptivePrefetch(AdaptivePrefetch prefetcher) {
+        if (prefetchAdjuster != null) {
+            prefetchAdjuster.cancel(false);
+            prefetchAdjuster = null;
+        }
+        adaptivePrefetch = prefetcher;
+        if (prefetcher != null) {
+            val interval = prefetchSpec.getAdjustInterval().toNanos();
+            prefetchAdjuster = retryer.getScheduler().scheduleWithFixedDelay(
+                () -> adjustPrefetch(prefetcher),
+                interval,
+                interval,
+                NANOSECONDS
+            );
+        }
+    }
+
+    /**
+     * @return the tuning of the adaptive prefetch amount, or null when prefetching is not adaptive
+     */
+    AdaptivePrefetch getAdaptivePrefetch() {
+        return adaptivePrefetch;
+    }
+
+    /**
+     * Adjust the adaptive prefetch amount right away instead of waiting for the next interval. Useful for testing.
+     */
+    void adjustPrefetch() {
+        val prefetcher = adaptivePrefetch;
+        if (prefetcher != null) {
+            adjustPrefetch(prefetcher);
+        }
+    }
+
+    /**
+     * Apply a new adaptive prefetch amount if the measurements call for it. This runs on the shared scheduler, so the
+     * amount is applied in a single attempt. When the channel fails, the reset applies whatever amount is current.
+     */
+    private void adjustPrefetch(AdaptivePrefetch prefetcher) {
+        val amount = prefetcher.next();
+        val generation = current.get();
+        if (amount == prefetcher.getAmount() || generation == null || resets.get() > 0) {
+            return;
+        }
+        synchronized (generation) {
+            if (generation.isPaused()) {
+                // Applied once the byte budget allows deliveries again
+                prefetcher.setAmount(amount);
+                return;
+            }
+            try {
+                generation.getChannel().basicQos(amount, true);
+                log.debug("Adjusted prefetch from {} to {}", prefetcher.getAmount(), amount);
+                prefetcher.setAmount(amount);
+            } catch (IOException | RuntimeException ex) {
+                log.debug("Could not adjust prefetch, keeping {}", prefetcher.getAmount(), ex);
+            }
+        }
+    }
+
+    /**
+     * Enable publisher confirms on this channel. From now on, every published message is kept in flight until the
+     * broker confirms it, and messages that were not yet confirmed when the channel is lost will be published again
+     * once the channel is restored. Use {@link #waitForConfirms()} to wait until all published messages are
+     * confirmed.
+     *
+     * @param spec the confirm specification
+     */
+    public synchronized void confirmSelect(@NonNull ConfirmSpec spec) {
+        confirmSpec = spec;
+        if (confirms == null) {
+            confirms = new PublisherConfirms();
+        }
+        performPublish(this::enableConfirms, spec);
+    }
+
+    private void enableConfirms(BackendChannel chan) throws IOException {
+        if (confirms.isAttachedTo(chan)) {
+            return;
+        }
+        chan.confirmSelect();
+        chan.addConfirmListener(new ConfirmListener() {
+            @Override
+            public void handleAck(long deliveryTag, boolean multiple) {
+                confirms.ack(chan, deliveryTag, multiple);
+            }
+
+            @Override
+            public void handleNack(long deliveryTag, boolean multiple) {
+                handleNacked(confirms.nack(chan, deliveryTag, multiple));
+            }
+        });
+        // Unconfirmed messages of a channel that was replaced without a reset are published again. The channel is still
+        // being opened here, so that can't be done synchronously.
+        confirms.attach(chan).forEach(this::republishAsync);
+    }
+
+    /**
+     * Handle messages that were nacked by the broker. This is called on a thread of the client library, which must not
+     * block, so messages are published again asynchronously.
+     */
+    private void handleNacked(List<PublisherConfirms.Confirmation> nacked) {
+        for (val confirmation : nacked) {
+            if (confirmSpec.isRepublishNacked()) {
+                log.warn("Message was nacked by the broker, will publish it again");
+                republishAsync(confirmation);
+            } else {
+                log.warn("Message was nacked by the broker, dropping it");
+                confirms.fail(confirmation, new IOException("Message was nacked by the broker"));
+            }
+        }
+    }
+
+    /**
+     * Wait until all messages published on this channel so far are confirmed by the broker. Messages that need to be
+     * published again because of connection failures are waited for as well.
+     *
+     * @throws IllegalStateException when publisher confirms are not enabled on this channel
+     */
+    public void waitForConfirms() {
+        if (confirms == null) {
+            throw new IllegalStateException("Publisher confirms are not enabled on this channel");
+        }
+        confirms.awaitAll();
+    }
+
+    /**
+     * Spool published messages to local disk before sending them to the broker. With a spool configured,
+     * {@link #publish} returns as soon as the message is appended to the spool, and a background thread forwards
+     * spooled messages to the broker once it is reachable. Messages are removed from the spool after they were
+     * published, or after they were confirmed if publisher confirms are enabled. Messages that were still in the spool
+     * when the process stopped are published when a spool is configured on the same directory again.
+     * <p>
+     * Spooled messages are always published with the default retry policy of the connection.
+     *
+     * @param spec the spool specification
+     */
+    @SneakyThrows
+    public synchronized void spool(@NonNull SpoolSpec spec) {
+        if (spool != null) {
+            throw new IllegalStateException("A publish spool is already configured for this channel");
+        }
+        val created = new PublishSpool(spec);
+        val drainer = new Thread(() -> drainSpool(created), "hamq-spool-drainer");
+        drainer.setDaemon(true);
+        spoolDrainer = drainer;
+        spool = created;
+        drainer.start();
+    }
+
+    private void drainSpool(PublishSpool spool) {
+        // Closing the channel unsets the spool before interrupting this thread, so whenever the interrupt was consumed
+        // by publishing, it is noticed here before waiting for the next message
+        while (this.spool == spool) {
+            final PublishSpool.Entry entry;
+            try {
+                entry = spool.take();
+            } catch (InterruptedException ex) {
+                return;
+            }
+            while (true) {
+                try {
+                    // Spooled messages wait for the broker to unblock, however long it takes
+                    publishingSlot().awaitUnblocked();
+                    publishDirect(entry.getMessage()).whenComplete((ignored, ex) -> {
+                        if (ex == null) {
+                            trying(() -> spool.complete(entry));
+                            return;
+                        }
+                        // Nacked or given up after it was written, so it stays pending and is taken again later
+                        log.warn("Spooled message was not confirmed, will publish it again", ex);
+                        retryer.getScheduler().schedule(
+                            () -> spool.retry(entry),
+                            connection.getRetryPolicy().getInitialDelay().toMillis(),
+                            MILLISECONDS
+                        );
+                    });
+                    break;
+                } catch (Exception ex) {
+                    if (this.spool != spool) {
+                        // Interrupted by closing the channel, the message stays in the spool
+                        return;
+                    }
+                    log.error("Failed to publish spooled message, will try again", ex);
+                    try {
+                        Thread.sleep(connection.getRetryPolicy().getInitialDelay().toMillis());
+                    } catch (InterruptedException interrupted) {
+                        return;
+                    }
+                }
+            }
+        }
     }
 
     /**
@@ -127,21 +350,248 @@ public class Channel {
      *
      * @param spec the publish specification
      */
+    @SneakyThrows
     public void publish(@NonNull PublishSpec spec) {
-        val propBuilder = new AMQP.BasicProperties.Builder()
-            .deliveryMode(spec.isDurable() ? 2 : 1);
+        if (spool != null && spool.append(spec)) {
+            return;
+        }
+        retryer.withTimeout(spec.getTimeout(), () -> {
+            publishingSlot().awaitPublishable();
+            return publishDirect(spec);
+        });
+    }
 
-        if (!spec.getHeaders().isEmpty()) {
-            propBuilder.headers(spec.getHeaders());
+    /**
+     * Publish a message on this channel using a template. When the channel is open and neither a spool nor publisher
+     * confirms are configured, the message is written directly without allocating anything. Otherwise, or when this
+     * first attempt fails, the message is published like {@link #publish(PublishSpec)} would, including retries within
+     * the timeout of the template.
+     *
+     * @param template the template with the settings for the message
+     * @param body     the message body
+     */
+    public void publish(@NonNull PublishTemplate template, byte[] body) {
+        publish(template, template.getSpec().getRoutingKey(), body);
+    }
+
+    /**
+     * Publish a message on this channel using a template, with a routing key that differs from the template
+     *
+     * @param template   the template with the settings for the message
+     * @param routingKey the routing key for this message
+     * @param body       the message body
+     * @see #publish(PublishTemplate, byte[])
+     */
+    public void publish(@NonNull PublishTemplate template, @NonNull String routingKey, byte[] body) {
+        // While the connection is blocked, leave it to the regular path to apply the blocked publish policy
+        val direct = spool == null && confirms == null && !publishingSlot().isBlocked();
+        if (direct && tryPublish(template, routingKey, body)) {
+            return;
+        }
+        publish(template.toSpec(routingKey, body));
+    }
+
+    /**
+     * Make a single attempt to publish a message on the current channel, without the overhead of the retryer
+     *
+     * @return whether the message was published, or false when no channel is open or publishing failed
+     */
+    private boolean tryPublish(PublishTemplate template, String routingKey, byte[] body) {
+        // Opening a channel may have to connect, which is left to the path that applies the deadline
+        val generation = publishSlot == null ? current.get() : currentPublish.get();
+        if (generation == null) {
+            return false;
+        }
+        val start = System.nanoTime();
+        val spec = template.getSpec();
+        try {
+            generation.getChannel().basicPublish(
+                spec.getExchange(),
+                routingKey,
+                spec.isMandatory(),
+                template.getProperties(),
+                body
+            );
+        } catch (IOException | ShutdownSignalException ex) {
+            // Failures that publishing with retries recovers from, once the broken channel is out of the way
+            recoverAfterFailure(ex, publishSlot != null, generation);
+            return false;
+        }
+        retryer.getMetrics().recordOperation(OperationType.PUBLISH, 1, System.nanoTime() - start);
+        return true;
+    }
+
+    /**
+     * Publish a message on the broker, bypassing the spool
+     *
+     * @return a future that completes once the message is confirmed, or immediately if confirms are not enabled
+     */
+    private CompletableFuture<Void> publishDirect(PublishSpec spec) {
+        if (confirms != null) {
+            val confirmation = new PublisherConfirms.Confirmation(spec);
+            doPublish(confirmation);
+            return confirmation.getFuture();
         }
 
-        perform(chan -> chan.basicPublish(
+        val props = spec.toProperties();
+
+        performPublish(chan -> chan.basicPublish(
             spec.getExchange(),
             spec.getRoutingKey(),
             spec.isMandatory(),
-            propBuilder.build(),
+            props,
             spec.getBody()
         ), spec);
+
+        return CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * Publish a batch of messages on this channel. All messages are written back to back on the same channel within a
+     * single retry loop. When a failure occurs halfway, only the messages that were not yet written are retried after
+     * reconnecting.
+     * <p>
+     * If publisher confirms are enabled, this method returns once the broker confirmed all messages in the batch.
+     * Messages that were written but not confirmed before a failure are published again automatically.
+     * <p>
+     * The retry policy of the first specification applies to the whole batch.
+     *
+     * @param specs the publish specifications, in publishing order
+     */
+    public void publishBatch(@NonNull Collection<PublishSpec> specs) {
+        if (specs.isEmpty()) {
+            return;
+        }
+        retryer.withTimeout(specs.iterator().next().getTimeout(), () -> {
+            doPublishBatch(specs);
+            return null;
+        });
+    }
+
+    private void doPublishBatch(Collection<PublishSpec> specs) {
+        publishingSlot().awaitPublishable();
+
+        if (confirms == null) {
+            val remaining = new ArrayDeque<PublishSpec>(specs);
+            performPublish(chan -> {
+                while (!remaining.isEmpty()) {
+                    val spec = remaining.peek();
+                    chan.basicPublish(
+                        spec.getExchange(),
+                        spec.getRoutingKey(),
+                        spec.isMandatory(),
+                        spec.toProperties(),
+                        spec.getBody()
+                    );
+                    remaining.poll();
+                }
+            }, specs.iterator().next());
+            return;
+        }
+
+        val remaining = new ArrayDeque<PublisherConfirms.Confirmation>(specs.size());
+        specs.forEach(spec -> remaining.add(new PublisherConfirms.Confirmation(spec)));
+        val futures = remaining.stream()
+            .map(PublisherConfirms.Confirmation::getFuture)
+            .toArray(CompletableFuture[]::new);
+
+        try {
+            performPublish(chan -> {
+                while (!remaining.isEmpty()) {
+                    val confirmation = remaining.peek();
+                    confirms.publish(chan, confirmation, confirmation.getSpec().toProperties());
+                    remaining.poll();
+                }
+            }, specs.iterator().next());
+        } catch (Throwable ex) {
+            remaining.forEach(confirmation -> confirms.fail(confirmation, ex));
+            throw ex;
+        }
+
+        retryer.await(CompletableFuture.allOf(futures));
+    }
+
+    /**
+     * Publish a message on this channel without blocking the calling thread. While the broker is unreachable, retries
+     * are scheduled on timers instead of parking the caller.
+     * <p>
+     * If publisher confirms are enabled, the returned future completes once the broker confirmed the message.
+     * Otherwise, it completes once the message was written to the channel.
+     *
+     * @param spec the publish specification
+     * @return a future that completes when the message was published
+     */
+    public CompletableFuture<Void> publishAsync(@NonNull PublishSpec spec) {
+        val start = System.nanoTime();
+        return publishingSlot().publishable(spec.getTimeout()).thenCompose(ignored -> doPublishAsync(spec, start));
+    }
+
+    private CompletableFuture<Void> doPublishAsync(PublishSpec spec, long start) {
+        val props = spec.toProperties();
+        val attempt = new AtomicReference<Generation>();
+        RetryPolicy policy = getPublishRetryPolicyWithReset(spec, attempt);
+        if (spec.getTimeout() != null) {
+            // The time spent waiting for the connection to be unblocked counts towards the timeout
+            policy = policy.withTimeout(spec.getTimeout().minusNanos(System.nanoTime() - start));
+        }
+
+        if (confirms != null) {
+            val confirmation = new PublisherConfirms.Confirmation(spec);
+            return doPublishAsync(confirmation, props, policy, attempt)
+                .thenCompose(ignored -> confirmation.getFuture());
+        }
+
+        return retryer.performAsync(() -> {
+            val generation = activePublishGeneration();
+            attempt.set(generation);
+            generation.getChannel().basicPublish(
+                spec.getExchange(),
+                spec.getRoutingKey(),
+                spec.isMandatory(),
+                props,
+                spec.getBody()
+            );
+            return null;
+        }, policy);
+    }
+
+    private ConnectionSlot publishingSlot() {
+        return publishSlot != null ? publishSlot : slot;
+    }
+
+    private void doPublish(PublisherConfirms.Confirmation confirmation) {
+        val props = confirmation.getSpec().toProperties();
+        try {
+            performPublish(chan -> confirms.publish(chan, confirmation, props), confirmation.getSpec());
+        } catch (Throwable ex) {
+            // Given up, so nobody should wait for its confirmation anymore
+            confirms.fail(confirmation, ex);
+            throw ex;
+        }
+    }
+
+    private CompletableFuture<Void> doPublishAsync(
+        PublisherConfirms.Confirmation confirmation,
+        AMQP.BasicProperties props,
+        RetryPolicy policy,
+        AtomicReference<Generation> attempt
+    ) {
+        return retryer.<Void>performAsync(() -> {
+            val generation = activePublishGeneration();
+            attempt.set(generation);
+            confirms.publish(generation.getChannel(), confirmation, props);
+            return null;
+        }, policy).whenComplete((ignored, ex) -> {
+            if (ex != null) {
+                confirms.fail(confirmation, ex);
+            }
+        });
+    }
+
+    private void republishAsync(PublisherConfirms.Confirmation confirmation) {
+        val attempt = new AtomicReference<Generation>();
+        val policy = getPublishRetryPolicyWithReset(confirmation.getSpec(), attempt);
+        doPublishAsync(confirmation, confirmation.getSpec().toProperties(), policy, attempt);
     }
 
     /**
@@ -151,125 +601,619 @@ public class Channel {
      */
     public void consume(@NonNull ConsumeSpec spec) {
         val consumerTag = "consumer-" + tagCounter.getAndIncrement();
+        val dispatcher = DeliveryDispatcher.create(
+            spec,
+            spec.getExecutionMode() != null ? spec.getExecutionMode() : connection.getExecutionMode(),
+            spec.getMaxInFlight() > 0 || prefetchSpec == null ? spec.getMaxInFlight() : maxPrefetchAmount(),
+            "hamq-" + consumerTag
+        );
+        if (dispatcher != null) {
+            dispatchers.put(consumerTag, dispatcher);
+        }
+        if (spec.getDeduplicationKey() != null) {
+            deduplication.put(
+                consumerTag,
+                new DeduplicationCache(spec.getDeduplicationCacheSize(), spec.getDeduplicationTtl())
+            );
+        }
         doConsume(consumerTag, spec);
         consumers.put(consumerTag, spec);
     }
 
     private void doConsume(@NonNull String consumerTag, @NonNull ConsumeSpec spec) {
         val closed = new AtomicBoolean(false);
+        val dispatcher = dispatchers.get(consumerTag);
 
-        perform(chan -> chan.basicConsume(
-            spec.getQueue(),
-            consumerTag,
-            spec.isNoLocal(),
-            spec.isExclusive(),
-            spec.getArgs(),
-            new com.rabbitmq.client.Consumer() {
-                @Override
-                public void handleConsumeOk(String consumerTag) {
-                }
+        performOn(generation -> {
+            val chan = generation.getChannel();
+            val maxBytes = prefetchSpec == null ? 0 : prefetchSpec.getMaxBytes();
+            val acknowledger = measured(budgeted(
+                deduplicated(acksFor(chan).forConsumer(spec), spec, deduplication.get(consumerTag)),
+                generation,
+                maxBytes
+            ));
+            chan.basicConsume(
+                spec.getQueue(),
+                consumerTag,
+                spec.isNoLocal(),
+                spec.isExclusive(),
+                spec.getArgs(),
+                new com.rabbitmq.client.Consumer() {
+                    @Override
+                    public void handleConsumeOk(String consumerTag) {
+                    }
 
-                @Override
-                public void handleCancelOk(String consumerTag) {
-                }
+                    @Override
+                    public void handleCancelOk(String consumerTag) {
+                    }
+
+                    @Override
+                    public void handleCancel(String consumerTag) throws IOException {
+                    }
+
+                    @Override
+                    public void handleShutdownSignal(String consumerTag, ShutdownSignalException sig) {
+                        closed.set(true);
+                        reset(generation, sig);
+                    }
+
+                    @Override
+                    public void handleRecoverOk(String consumerTag) {
+                    }
 
-                @Override
-                public void handleCancel(String consumerTag) throws IOException {
+                    @Override
+                    public void handleDelivery(
+                        String consumerTag,
+                        Envelope envelope,
+                        AMQP.BasicProperties properties,
+                        byte[] body
+                    ) {
+                        if (closed.get()) {
+                            throw new RuntimeException("Consumer is closed");
+                        }
+                        val delivery = new Delivery(chan, envelope, properties, body, System.nanoTime(), acknowledger);
+                        if (maxBytes > 0) {
+                            holdBytes(generation, delivery, maxBytes);
+                        }
+                        if (dispatcher == null) {
+                            process(generation, consumerTag, spec, closed, delivery);
+                            return;
+                        }
+                        val key = spec.getOrderingKey() == null ? null : spec.getOrderingKey().apply(delivery);
+                        dispatcher.dispatch(key, () -> {
+                            // Deliveries of a consumer that was closed in the meantime will be redelivered
+                            if (!closed.get()) {
+                                process(generation, consumerTag, spec, closed, delivery);
+                            }
+                        });
+                    }
                 }
+            );
+        }, spec, OperationType.CONSUME);
+    }
+
+    private int maxPrefetchAmount() {
+        return prefetchSpec.isAdaptive() ? prefetchSpec.getMaxAmount() : prefetchSpec.getAmount();
+    }
 
-                @Override
-                public void handleShutdownSignal(String consumerTag, ShutdownSignalException sig) {
-                    closed.set(true);
-                    reset(chan);
+    /**
+     * Wrap an acknowledger so that it remembers the keys of acked deliveries for deduplication, if enabled. The key is
+     * remembered before acking, since the work is done even when the ack gets lost with the channel.
+     */
+    private Acknowledger deduplicated(Acknowledger acknowledger, ConsumeSpec spec, DeduplicationCache cache) {
+        if (cache == null) {
+            return acknowledger;
+        }
+        return new Acknowledger() {
+            @Override
+            public void ack(Delivery delivery) throws IOException {
+                val key = spec.getDeduplicationKey().apply(delivery);
+                if (key != null) {
+                    cache.add(key);
                 }
+                acknowledger.ack(delivery);
+            }
+
+            @Override
+            public void nack(Delivery delivery) throws IOException {
+                acknowledger.nack(delivery);
+            }
+        };
+    }
+
+    /**
+     * @return whether the delivery is a redelivery of one that the consumer already acked, but the ack didn't reach the
+     * broker before the channel was lost
+     */
+    private boolean isCompletedRedelivery(String consumerTag, ConsumeSpec spec, Delivery delivery) {
+        val cache = deduplication.get(consumerTag);
+        if (cache == null || !delivery.getEnvelope().isRedeliver()) {
+            return false;
+        }
+        val key = spec.getDeduplicationKey().apply(delivery);
+        return key != null && cache.contains(key);
+    }
+
+    /**
+     * Wrap an acknowledger so that it releases the bytes of settled deliveries from the byte budget, if there is one
+     */
+    private Acknowledger budgeted(Acknowledger acknowledger, Generation generation, long maxBytes) {
+        if (maxBytes <= 0) {
+            return acknowledger;
+        }
+        return new Acknowledger() {
+            @Override
+            public void ack(Delivery delivery) throws IOException {
+                acknowledger.ack(delivery);
+                releaseBytes(generation, delivery, maxBytes);
+            }
+
+            @Override
+            public void nack(Delivery delivery) throws IOException {
+                acknowledger.nack(delivery);
+                releaseBytes(generation, delivery, maxBytes);
+            }
+        };
+    }
+
+    /**
+     * Count a received delivery against the byte budget, and pause deliveries on the channel once it is exceeded
+     */
+    private void holdBytes(Generation generation, Delivery delivery, long maxBytes) {
+        if (generation.unackedBytes.addAndGet(sizeOf(delivery)) > maxBytes
+            && generation.paused.compareAndSet(false, true)) {
+            log.debug("Unacked deliveries exceed {} bytes, pausing deliveries", maxBytes);
+            applyChannelLimit(generation);
+        }
+    }
+
+    /**
+     * Release a settled delivery from the byte budget, and resume deliveries once the budget allows it again
+     */
+    private void releaseBytes(Generation generation, Delivery delivery, long maxBytes) {
+        if (generation.unackedBytes.addAndGet(-sizeOf(delivery)) <= maxBytes
+            && generation.paused.compareAndSet(true, false)) {
+            log.debug("Unacked deliveries are within {} bytes, resuming deliveries", maxBytes);
+            applyChannelLimit(generation);
+        }
+    }
+
+    private static long sizeOf(Delivery delivery) {
+        return delivery.getBody() == null ? 0 : delivery.getBody().length;
+    }
+
+    /**
+     * Apply the limit on the whole channel that matches the current state of the byte budget. While paused, the limit
+     * is 1, so the broker holds back deliveries until the consumers caught up. Otherwise, it is the adaptive prefetch
+     * amount, or no limit. The state is read while holding the lock, so concurrent pauses and resumes are applied in
+     * order. This is a single attempt, since a failing channel is reset with a fresh budget.
+     */
+    private void applyChannelLimit(Generation generation) {
+        synchronized (generation) {
+            val prefetcher = adaptivePrefetch;
+            val limit = generation.isPaused() ? 1 : prefetcher == null ? 0 : prefetcher.getAmount();
+            try {
+                generation.getChannel().basicQos(limit, true);
+            } catch (IOException | RuntimeException ex) {
+                log.debug("Could not apply channel prefetch limit {}", limit, ex);
+            }
+        }
+    }
 
-                @Override
-                public void handleRecoverOk(String consumerTag) {
+    /**
+     * Wrap an acknowledger so that it reports ack latency to the metrics of the connection and to adaptive prefetching
+     */
+    private Acknowledger measured(Acknowledger acknowledger) {
+        val metrics = retryer.getMetrics();
+        if (metrics == Metrics.NONE && adaptivePrefetch == null) {
+            return acknowledger;
+        }
+        return new Acknowledger() {
+            @Override
+            public void ack(Delivery delivery) throws IOException {
+                acknowledger.ack(delivery);
+                val nanos = System.nanoTime() - delivery.getReceivedNanos();
+                metrics.recordAck(nanos);
+                val prefetcher = adaptivePrefetch;
+                if (prefetcher != null) {
+                    prefetcher.recordAck(nanos);
                 }
+            }
 
-                @Override
-                @SneakyThrows
-                public void handleDelivery(
-                    String consumerTag,
-                    Envelope envelope,
-                    AMQP.BasicProperties properties,
-                    byte[] body
-                ) {
-                    if (closed.get()) {
-                        throw new RuntimeException("Consumer is closed");
-                    }
-                    trying(() -> spec.getCallback().accept(new Delivery(chan, envelope, properties, body)))
-                        .orElse(ex -> {
-                            // Processing the delivery failed, which means that acking or nacking must have failed
-                            // since consumer callbacks are supposed to deal with their own internal errors. We have
-                            // to clean up this channel and connection and retry consuming.
-                            trying(() -> chan.basicCancel(consumerTag));
-                            log.warn("Error while (n)acking delivery, will retry consuming", ex);
-                            closed.set(true);
-                            reset(chan);
-                        });
+            @Override
+            public void nack(Delivery delivery) throws IOException {
+                acknowledger.nack(delivery);
+            }
+        };
+    }
+
+    @SneakyThrows
+    private void process(
+        Generation generation,
+        String consumerTag,
+        ConsumeSpec spec,
+        AtomicBoolean closed,
+        Delivery delivery
+    ) {
+        if (isCompletedRedelivery(consumerTag, spec, delivery)) {
+            log.debug("Acking redelivery that consumer {} already processed", consumerTag);
+            trying(delivery::ack).orElse(ex -> abandonConsumer(generation, consumerTag, closed, ex));
+            return;
+        }
+        val start = System.nanoTime();
+        val result = trying(() -> spec.getCallback().accept(delivery));
+        val nanos = System.nanoTime() - start;
+        retryer.getMetrics().recordCallback(nanos);
+        val prefetcher = adaptivePrefetch;
+        if (prefetcher != null) {
+            prefetcher.recordProcessing(nanos);
+        }
+        result.orElse(ex -> abandonConsumer(generation, consumerTag, closed, ex));
+    }
+
+    private void abandonConsumer(Generation generation, String consumerTag, AtomicBoolean closed, Throwable ex) {
+        // Processing the delivery failed, which means that acking or nacking must have failed since consumer
+        // callbacks are supposed to deal with their own internal errors. We have to clean up this channel and
+        // connection and retry consuming.
+        trying(() -> generation.getChannel().basicCancel(consumerTag));
+        log.warn("Error while (n)acking delivery, will retry consuming", ex);
+        closed.set(true);
+        reset(generation, ex);
+    }
+
+    /**
+     * Close this channel. Consumers are cancelled and their workers stopped, coalesced acknowledgements are sent and
+     * the publish spool, if any, is closed. Messages that are still in the spool will be published once a spool is
+     * configured on the same directory again.
+     */
+    public void close() {
+        setAdaptivePrefetch(null);
+        stopSpooling();
+        getChannelLock.lock();
+        try {
+            val generation = current.getAndSet(null);
+            if (generation != null) {
+                val chan = generation.getChannel();
+                consumers.keySet().forEach(tag -> trying(() -> chan.basicCancel(tag)));
+                flushAcks();
+                trying(chan::close);
+            }
+            val publishGeneration = currentPublish.getAndSet(null);
+            if (publishGeneration != null) {
+                trying(publishGeneration.getChannel()::close);
+            }
+            consumers.clear();
+            dispatchers.values().forEach(DeliveryDispatcher::shutdown);
+            dispatchers.clear();
+            deduplication.clear();
+            if (!released) {
+                slot.releaseChannel();
+                if (publishSlot != null) {
+                    publishSlot.releaseChannel();
                 }
+                released = true;
             }
-        ), spec);
+        } finally {
+            getChannelLock.unlock();
+        }
+    }
+
+    /**
+     * Stop the spool drainer and close the spool, if any. The drainer is stopped first and outside of the channel lock,
+     * so that it neither waits for the lock nor publishes messages that are meant to stay in the spool.
+     */
+    private void stopSpooling() {
+        val closing = spool;
+        if (closing == null) {
+            return;
+        }
+        spool = null;
+        val drainer = spoolDrainer;
+        spoolDrainer = null;
+        drainer.interrupt();
+        trying(() -> drainer.join()).orElse(ex -> log.warn("Interrupted while stopping the spool drainer", ex));
+        trying(closing::close);
+    }
+
+    private void flushAcks() {
+        synchronized (acksLock) {
+            if (acks != null) {
+                acks.close();
+                acks = null;
+            }
+        }
     }
 
     /**
      * Try to perform an operation on the channel, retrying it if necessary
      */
     private void perform(ThrowingConsumer<BackendChannel> operation, OperationSpec spec) {
-        retryer.performWithRetry(
-            () -> operation.accept(activeChannel()),
-            getRetryPolicy(spec).withErrorHandler(ex -> {
-                if (Retryer.shouldReconnectToRecover(ex)) {
-                    reset(null);
-                }
-            })
-        );
+        perform(operation, spec, OperationType.of(spec));
     }
 
-    private RetryPolicy getRetryPolicy(OperationSpec spec) {
-        if (spec.getRetryPolicy() != null) {
-            return spec.getRetryPolicy();
+    private void perform(ThrowingConsumer<BackendChannel> operation, OperationSpec spec, OperationType type) {
+        performOn(generation -> operation.accept(generation.getChannel()), spec, type);
+    }
+
+    /**
+     * Perform an operation that needs to know which generation of the backend channel it runs on
+     */
+    private void performOn(ThrowingConsumer<Generation> operation, OperationSpec spec, OperationType type) {
+        val start = System.nanoTime();
+        // Generation the last attempt ran on, so that only that generation is reset when the attempt fails
+        val attempt = new AtomicReference<Generation>();
+        int attempts;
+        try {
+            attempts = retryer.performWithRetry(
+                () -> {
+                    val generation = activeGeneration();
+                    attempt.set(generation);
+                    operation.accept(generation);
+                },
+                getRetryPolicyWithReset(spec, attempt)
+            );
+        } catch (Throwable ex) {
+            recoverAfterFailure(ex, false, attempt.get());
+            throw ex;
         }
-        return connection.getRetryPolicy();
+        retryer.getMetrics().recordOperation(type, attempts, System.nanoTime() - start);
     }
 
-    private BackendChannel activeChannel() {
-        getChannelLock.lock();
-        if (channel == null) {
-            channel = retryer.performWithRetry(
-                () -> connection.activeConnection().newChannel(),
-                new RetryPolicy().withRetryAll(true)
+    /**
+     * Try to perform a publishing operation, retrying it if necessary. With separate publish connections, the operation
+     * runs on the publish channel, and errors only reset publishing.
+     */
+    private void performPublish(ThrowingConsumer<BackendChannel> operation, OperationSpec spec) {
+        val start = System.nanoTime();
+        val attempt = new AtomicReference<Generation>();
+        int attempts;
+        try {
+            attempts = retryer.performWithRetry(
+                () -> {
+                    val generation = activePublishGeneration();
+                    attempt.set(generation);
+                    operation.accept(generation.getChannel());
+                },
+                getPublishRetryPolicyWithReset(spec, attempt)
             );
+        } catch (Throwable ex) {
+            recoverAfterFailure(ex, publishSlot != null, attempt.get());
+            throw ex;
+        }
+        retryer.getMetrics().recordOperation(OperationType.of(spec), attempts, System.nanoTime() - start);
+    }
+
+    /**
+     * Handle an operation that failed without being retried. Errors such as a missing queue close the channel without
+     * being retryable, so the channel is reopened to keep its consumers running and to have it ready for the next
+     * operation. Failures while already resetting are left to the reset that is in progress.
+     *
+     * @param publishing whether the operation failed on the separate publish channel
+     * @param failed     the generation the last attempt ran on, or null if it didn't get that far
+     */
+    private void recoverAfterFailure(Throwable ex, boolean publishing, Generation failed) {
+        if (resetting.get() || failed == null || !Retryer.shouldReconnectToRecover(ex)) {
+            return;
+        }
+        trying(() -> {
+            if (publishing) {
+                resetPublishing(failed, ex);
+            } else {
+                reset(failed, ex);
+            }
+        }).orElse(resetError -> log.warn("Could not restore channel after failed operation", resetError));
+    }
+
+    private RetryPolicy getPublishRetryPolicyWithReset(OperationSpec spec, AtomicReference<Generation> attempt) {
+        if (publishSlot == null) {
+            return getRetryPolicyWithReset(spec, attempt);
+        }
+        return getRetryPolicy(spec).withErrorHandler(ex -> {
+            if (Retryer.shouldReconnectToRecover(ex)) {
+                resetPublishing(attempt.get(), ex);
+            }
+        });
+    }
+
+    /**
+     * Get the retry policy for an operation, extended with resetting this channel on errors that require it
+     *
+     * @param attempt holds the generation of the backend channel the failed attempt ran on
+     */
+    private RetryPolicy getRetryPolicyWithReset(OperationSpec spec, AtomicReference<Generation> attempt) {
+        return getRetryPolicy(spec).withErrorHandler(ex -> {
+            if (Retryer.shouldReconnectToRecover(ex)) {
+                reset(attempt.get(), ex);
+            }
+        });
+    }
+
+    private RetryPolicy getRetryPolicy(OperationSpec spec) {
+        val policy = spec.getRetryPolicy() != null ? spec.getRetryPolicy() : connection.getRetryPolicy();
+        // Restoring prefetch, consumers and unconfirmed messages is part of recovering, which has to wait for the
+        // circuit breaker and not use up the retry budget, and can't give up halfway
+        return resetting.get() ? policy.withInternal(true) : policy.withTimeout(spec.getTimeout());
+    }
+
+    /**
+     * Get the current generation of the backend channel. While the channel is up, this is a single volatile read.
+     * Opening a new channel is done by one thread at a time.
+     */
+    private Generation activeGeneration() {
+        val generation = current.get();
+        if (generation != null) {
+            return generation;
+        }
+        return openGeneration(current, slot, publishSlot == null);
+    }
+
+    private Generation activePublishGeneration() {
+        if (publishSlot == null) {
+            return activeGeneration();
+        }
+        val generation = currentPublish.get();
+        if (generation != null) {
+            return generation;
+        }
+        return openGeneration(currentPublish, publishSlot, true);
+    }
+
+    private Generation openGeneration(AtomicReference<Generation> target, ConnectionSlot from, boolean publishing) {
+        retryer.lock(getChannelLock);
+        try {
+            Generation generation = target.get();
+            if (generation == null) {
+                // Like connecting, this gives up at the deadline of the operation that needs the channel, if any
+                generation = retryer.performWithRetry(
+                    () -> {
+                        val conn = from.activeConnection();
+                        return new Generation(generationCounter.incrementAndGet(), conn, openChannel(conn, publishing));
+                    },
+                    connection.getRetryPolicy().withRetryAll(true).withInternal(true)
+                );
+                target.set(generation);
+            }
+            return generation;
+        } finally {
+            getChannelLock.unlock();
+        }
+    }
+
+    /**
+     * Get the acknowledgement coalescer for the given backend channel, creating it for a new channel
+     */
+    private AckCoalescer acksFor(BackendChannel chan) {
+        synchronized (acksLock) {
+            if (acks == null || acks.getChannel() != chan) {
+                if (acks != null) {
+                    // Deliveries of the previous channel can't be acked on the new one, so its flush must not linger
+                    acks.close();
+                }
+                acks = new AckCoalescer(chan, retryer.getScheduler());
+            }
+            return acks;
         }
-        getChannelLock.unlock();
-        return channel;
     }
 
+    /**
+     * Open a new backend channel on the given connection
+     *
+     * @param publishing whether the channel is used for publishing, in which case confirms are enabled if required
+     */
+    private BackendChannel openChannel(BackendConnection conn, boolean publishing) throws IOException {
+        val chan = conn.newChannel();
+        if (publishing && confirms != null) {
+            try {
+                enableConfirms(chan);
+            } catch (IOException | RuntimeException ex) {
+                trying(chan::close);
+                throw ex;
+            }
+        }
+        return chan;
+    }
+
+    /**
+     * Replace the backend channel and restore the state of this channel on the new one. Only network errors and other
+     * hard errors reset the connection. Soft errors such as a missing queue only closed the channel, in which case the
+     * channel is reopened on the same connection and the other channels on it are not interrupted.
+     *
+     * @param failed the generation of the backend channel the error occurred on
+     * @param cause  the error that made the reset necessary
+     */
     @SneakyThrows
-    private void reset(BackendChannel errorChan) {
-        if (channel != null && errorChan != null && channel != errorChan) {
-            // The channel on which the error occurred is not the same as the current active channel, which means that
-            // we got an error on an old, already closed/reset channel. This can happen in consumers where message
-            // acknowledgement fails because the connection and channel were already reset.
+    private void reset(Generation failed, Throwable cause) {
+        if (failed == null || !current.compareAndSet(failed, null)) {
+            // The error occurred on an old generation that was already reset and replaced. This can happen in
+            // consumers where message acknowledgement fails because the connection and channel were already reset,
+            // or when several operations fail on the same channel at once.
+            log.debug("Ignoring error on channel generation {} that was already reset", failed);
             return;
         }
-        // Cancel consumers and close the current channel
-        if (channel != null) {
-            consumers.keySet().forEach(tag -> trying(() -> channel.basicCancel(tag)));
-            trying(channel::close);
+        val wasResetting = resetting.get();
+        resetting.set(true);
+        resets.incrementAndGet();
+        try {
+            doReset(failed, Retryer.isNetworkError(cause));
+        } finally {
+            resets.decrementAndGet();
+            resetting.set(wasResetting);
+        }
+    }
+
+    private void doReset(Generation failed, boolean connectionLost) {
+        val start = System.nanoTime();
+        val chan = failed.getChannel();
+        // Messages that were published on the old channel but never confirmed have to be published again. This happens
+        // first, before a new channel can be opened and attached in the meantime.
+        val unconfirmed = confirms == null || publishSlot != null
+            ? Collections.<PublisherConfirms.Confirmation>emptyList()
+            : confirms.detach(chan);
+        // Cancel consumers, send pending acknowledgements and close the failed channel
+        consumers.keySet().forEach(tag -> trying(() -> chan.basicCancel(tag)));
+        flushAcks();
+        trying(chan::close);
+        if (connectionLost) {
+            // Reset the connection, unless another channel on it already did. The new connection restores the
+            // topology before this channel is opened on it again.
+            slot.reset(failed.getConnection());
         }
-        // Reset the connection
-        connection.reset();
-        channel = null;
 
-        // Restore state
-        exchanges.forEach(this::doExchangeDeclare);
-        queues.forEach(this::doQueueDeclare);
-        binds.forEach(this::doQueueBind);
+        // Restore state. When only the channel was lost, the rest of the connection's topology is still there, but
+        // auto-delete queues and exchanges that were declared through this channel disappear with its consumers.
+        val owned = connectionLost ? null : topology.autoDeleting();
+        if (owned != null && owned.size() > 0) {
+            perform(owned::restore, TOPOLOGY_RESTORE, OperationType.TOPOLOGY_RESTORE);
+        }
         if (prefetchSpec != null) {
-            doPrefetch(prefetchSpec);
+            doPrefetch(prefetchSpec, adaptivePrefetch);
         }
         consumers.forEach(this::doConsume);
+        unconfirmed.forEach(this::doPublish);
+
+        val replayed = (prefetchSpec != null ? 1 : 0) + consumers.size();
+        retryer.getMetrics().recordReset(System.nanoTime() - start, replayed);
+    }
+
+    /**
+     * Reset the publish channel when publishing is separated from consuming, and its connection as well when the error
+     * requires it. Consumers are not interrupted.
+     */
+    private void resetPublishing(Generation failed, Throwable cause) {
+        if (failed == null || !currentPublish.compareAndSet(failed, null)) {
+            return;
+        }
+        val unconfirmed = confirms == null
+            ? Collections.<PublisherConfirms.Confirmation>emptyList()
+            : confirms.detach(failed.getChannel());
+        trying(failed.getChannel()::close);
+        if (Retryer.isNetworkError(cause)) {
+            publishSlot.reset(failed.getConnection());
+        }
+        unconfirmed.forEach(this::doPublish);
+    }
+
+    /**
+     * A backend channel together with the connection it was opened on. Every backend channel that is opened gets a new
+     * generation, so errors from channels that were already replaced are recognized and ignored.
+     */
+    @RequiredArgsConstructor
+    @Getter
+    private static class Generation {
+        private final long number;
+        private final BackendConnection connection;
+        private final BackendChannel channel;
+        // Size of the deliveries that were received on the channel and not settled yet, for the byte budget
+        private final AtomicLong unackedBytes = new AtomicLong();
+        private final AtomicBoolean paused = new AtomicBoolean();
+
+        boolean isPaused() {
+            return paused.get();
+        }
+
+        @Override
+        public String toString() {
+            return Long.toString(number);
+        }
     }
 }
@@ -0,0 +1,13 @@
+package io.buybrain.hamq;
+
+import java.io.IOException;
+
+/**
+ * Thrown when an operation picked up a backend channel that was replaced before the operation could use it. The
+ * operation can be retried on the current channel shortly after.
+ */
+class ChannelReplacedException extends IOException {
+    ChannelReplacedException() {
+        super("Channel was replaced while the operation was in progress");
+    }
+}
@@ -0,0 +1,67 @@
+package io.buybrain.hamq;
+
+import lombok.NonNull;
+import lombok.val;
+
+import java.time.Duration;
+import java.util.function.LongSupplier;
+
+/**
+ * Circuit breaker that is shared by all channels of a connection and implements a {@link CircuitBreakerPolicy}.
+ * Checking a closed circuit is a single volatile read.
+ */
+class CircuitBreaker {
+    private final int failureThreshold;
+    private final long coolDownNanos;
+    private final LongSupplier nanoTime;
+    private int failures;
+    // Moment until which the circuit is open, only meaningful while open is set
+    private volatile long openUntil;
+    private volatile boolean open;
+
+    CircuitBreaker(@NonNull CircuitBreakerPolicy policy) {
+        this(policy, System::nanoTime);
+    }
+
+    CircuitBreaker(@NonNull CircuitBreakerPolicy policy, @NonNull LongSupplier nanoTime) {
+        if (policy.getFailureThreshold() < 1) {
+            throw new IllegalArgumentException("Circuit breaker failure threshold must be at least 1");
+        }
+        failureThreshold = policy.getFailureThreshold();
+        coolDownNanos = policy.getCoolDown().toNanos();
+        this.nanoTime = nanoTime;
+    }
+
+    /**
+     * @throws CircuitOpenException when the circuit is open and the cool down period didn't pass yet
+     */
+    void check() {
+        if (!open) {
+            return;
+        }
+        val remaining = openUntil - nanoTime.getAsLong();
+        if (remaining > 0) {
+            throw new CircuitOpenException(Duration.ofNanos(remaining));
+        }
+    }
+
+    /**
+     * Record a failed attempt to connect. Opens the circuit once the threshold is reached, or again right away when an
+     * attempt after a cool down failed.
+     */
+    synchronized void recordFailure() {
+        failures++;
+        if (failures >= failureThreshold) {
+            openUntil = nanoTime.getAsLong() + coolDownNanos;
+            open = true;
+        }
+    }
+
+    /**
+     * Record a successful connect, which closes the circuit
+     */
+    synchronized void recordSuccess() {
+        failures = 0;
+        open = false;
+    }
+}
@@ -0,0 +1,19 @@
+package io.buybrain.hamq;
+
+import lombok.NonNull;
+import lombok.Value;
+
+import java.time.Duration;
+
+/**
+ * Settings for the circuit breaker of a connection, as used by {@link Config#getCircuitBreaker()}. After
+ * {@code failureThreshold} consecutive failed attempts to connect, the circuit opens for the {@code coolDown} period.
+ * While it is open, operations fail right away with a {@link CircuitOpenException} instead of waiting for the broker.
+ * After the cool down, the next connect attempt decides whether the circuit closes again or stays open for another
+ * period.
+ */
+@Value
+public class CircuitBreakerPolicy {
+    int failureThreshold;
+    @NonNull Duration coolDown;
+}
@@ -0,0 +1,19 @@
+package io.buybrain.hamq;
+
+import lombok.Getter;
+import lombok.NonNull;
+
+import java.time.Duration;
+
+/**
+ * Thrown when an operation is attempted while the circuit breaker of the connection is open, see
+ * {@link CircuitBreakerPolicy}.
+ */
+public class CircuitOpenException extends RuntimeException {
+    @Getter private final Duration remaining;
+
+    public CircuitOpenException(@NonNull Duration remaining) {
+        super("Circuit breaker is open, broker is considered unavailable for another " + remaining.toMillis() + "ms");
+        this.remaining = remaining;
+    }
+}
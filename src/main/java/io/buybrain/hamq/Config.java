@@ -6,6 +6,12 @@ import lombok.NonNull;
 import lombok.Value;
 import lombok.experimental.Wither;
 
+import java.time.Duration;
+import java.util.List;
+
+import static java.util.Collections.emptyList;
+import static java.util.Collections.singletonList;
+
 /**
  * Connection and retry configuration for HAmq connections
  */
@@ -19,14 +25,55 @@ public class Config {
     @NonNull String password;
     @NonNull String vhost;
     @NonNull RetryPolicy retryPolicy;
+    @NonNull ExecutionMode executionMode;
+    int publisherPoolSize;
+    int connectionCount;
+    boolean separatePublishConnections;
+    @NonNull List<BrokerAddress> addresses;
+    // Optional limits on retries, null when not used
+    RetryBudget retryBudget;
+    CircuitBreakerPolicy circuitBreaker;
+    // What publishing does while the broker blocks the connection, and how long it waits at most, or null for no limit
+    @NonNull BlockedPublishPolicy blockedPublishPolicy;
+    Duration blockedPublishTimeout;
 
     public Config() {
-        host = "localhost";
-        port = 5672;
-        username = "guest";
-        password = "guest";
-        vhost = "/";
-        retryPolicy = new RetryPolicy();
+        this("localhost", 5672, "guest", "guest", "/", new RetryPolicy());
+    }
+
+    /**
+     * Create a configuration for a single broker node, with defaults for everything that was added later
+     *
+     * @param host        the broker host
+     * @param port        the broker port
+     * @param username    the user to log in with
+     * @param password    the password of the user
+     * @param vhost       the virtual host
+     * @param retryPolicy the default retry policy
+     */
+    public Config(
+        @NonNull String host,
+        int port,
+        @NonNull String username,
+        @NonNull String password,
+        @NonNull String vhost,
+        @NonNull RetryPolicy retryPolicy
+    ) {
+        this.host = host;
+        this.port = port;
+        this.username = username;
+        this.password = password;
+        this.vhost = vhost;
+        this.retryPolicy = retryPolicy;
+        executionMode = ExecutionMode.PLATFORM_THREADS;
+        publisherPoolSize = Runtime.getRuntime().availableProcessors();
+        connectionCount = 1;
+        separatePublishConnections = false;
+        addresses = emptyList();
+        retryBudget = null;
+        circuitBreaker = null;
+        blockedPublishPolicy = BlockedPublishPolicy.WAIT;
+        blockedPublishTimeout = null;
     }
 
     public static Config ofEnv(@NonNull Env env) {
@@ -35,11 +82,30 @@ public class Config {
 
     public static Config ofEnv(@NonNull Env env, @NonNull String prefix) {
         Config config = new Config();
-        return config
+        config = config
             .withHost(env.getString(prefix + "HOST", config.getHost()))
             .withPort(env.getInt(prefix + "PORT", config.getPort()))
             .withUsername(env.getString(prefix + "USER", config.getUsername()))
             .withPassword(env.getString(prefix + "PASS", config.getPassword()))
             .withVhost(env.getString(prefix + "VHOST", config.getVhost()));
+        return config.withAddresses(BrokerAddress.parseList(env.getString(prefix + "ADDRESSES", ""), config.getPort()));
+    }
+
+    /**
+     * Get the broker nodes to connect to. These are the configured addresses, or the host and port when no addresses
+     * are configured.
+     *
+     * @return the broker nodes, in order of preference
+     */
+    public List<BrokerAddress> getBrokerAddresses() {
+        return addresses.isEmpty() ? singletonList(new BrokerAddress(host, port)) : addresses;
+    }
+
+    /**
+     * @param address one of the broker nodes
+     * @return this configuration, with the host and port of the given node
+     */
+    Config forAddress(@NonNull BrokerAddress address) {
+        return withHost(address.getHost()).withPort(address.getPort());
     }
 }
@@ -0,0 +1,25 @@
+package io.buybrain.hamq;
+
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import lombok.Value;
+import lombok.experimental.Wither;
+
+/**
+ * Specification for enabling publisher confirms as used by {@link Channel#confirmSelect}.
+ */
+@Value
+@EqualsAndHashCode(callSuper = true)
+@Wither
+@AllArgsConstructor
+public class ConfirmSpec extends OperationSpec<ConfirmSpec> {
+    /**
+     * Whether messages that are negatively acknowledged by the broker should be published again. If disabled, nacked
+     * messages are dropped and waiting for their confirmation will fail.
+     */
+    boolean republishNacked;
+
+    public ConfirmSpec() {
+        republishNacked = true;
+    }
+}
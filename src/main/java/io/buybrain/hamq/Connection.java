@@ -2,19 +2,82 @@ package io.buybrain.hamq;
 
 import io.buybrain.util.time.Clock;
 import lombok.NonNull;
-import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static io.buybrain.util.Result.trying;
 
 /**
  * HAmq connection representation
  */
-@RequiredArgsConstructor
+@Slf4j
 public class Connection {
     @NonNull private final Config config;
     @NonNull private final Backend backend;
-    private BackendConnection connection;
+    private final List<ConnectionSlot> slots = new ArrayList<>();
+    // Separate connections for publishing, or empty when channels publish on their own connection
+    private final List<ConnectionSlot> publishSlots = new ArrayList<>();
+    private final AtomicInteger nextSlot = new AtomicInteger();
     private Retryer retryer = new Retryer();
+    private final PublisherPool publisherPool;
+    private final List<ConnectionBlockedListener> blockedListeners = new CopyOnWriteArrayList<>();
+    // Executor for asynchronous retry attempts that this connection created itself, if any
+    private ExecutorService ownExecutor;
+
+    public Connection(@NonNull Config config, @NonNull Backend backend) {
+        if (config.getConnectionCount() < 1) {
+            throw new IllegalArgumentException(
+                "Connection count must be at least 1, got " + config.getConnectionCount()
+            );
+        }
+        this.config = config;
+        this.backend = backend;
+        if (config.getRetryBudget() != null) {
+            retryer.setBudget(new TokenBucket(config.getRetryBudget()));
+        }
+        if (config.getCircuitBreaker() != null) {
+            retryer.setCircuitBreaker(new CircuitBreaker(config.getCircuitBreaker()));
+        }
+        val nodes = new NodeSelector(config.getBrokerAddresses());
+        for (int i = 0; i < config.getConnectionCount(); i++) {
+            slots.add(new ConnectionSlot(config, backend, retryer, nodes));
+            if (config.isSeparatePublishConnections()) {
+                publishSlots.add(new ConnectionSlot(config, backend, retryer, nodes));
+            }
+        }
+        val blockedListener = new ConnectionBlockedListener() {
+            @Override
+            public void blocked(String reason) {
+                blockedListeners.forEach(listener -> trying(() -> listener.blocked(reason))
+                    .orElse(ex -> log.warn("Blocked listener failed", ex)));
+            }
+
+            @Override
+            public void unblocked() {
+                blockedListeners.forEach(listener -> trying(listener::unblocked)
+                    .orElse(ex -> log.warn("Blocked listener failed", ex)));
+            }
+        };
+        slots.forEach(slot -> slot.setBlockedListener(blockedListener));
+        publishSlots.forEach(slot -> slot.setBlockedListener(blockedListener));
+        publisherPool = new PublisherPool(
+            this,
+            publishSlots.isEmpty() ? slots : publishSlots,
+            retryer,
+            config.getPublisherPoolSize()
+        );
+        if (config.getExecutionMode() == ExecutionMode.VIRTUAL_THREADS) {
+            ownExecutor = VirtualThreads.newExecutor();
+            retryer.setExecutor(ownExecutor);
+        }
+    }
 
     /**
      * Set the clock implementation for this connection. Useful for testing.
@@ -26,12 +89,98 @@ public class Connection {
     }
 
     /**
-     * Create a new AMQP channel.
+     * Set the metrics implementation that receives measurements of operations, retries and reconnects on this
+     * connection. By default, measurements are discarded.
+     *
+     * @param metrics the new metrics implementation
+     */
+    public void setMetrics(@NonNull Metrics metrics) {
+        retryer.setMetrics(metrics);
+    }
+
+    /**
+     * Set the scheduler for the timers of asynchronous operations such as {@link Channel#publishAsync}, for instance
+     * the backoff between attempts. The attempts themselves run on a separate pool. By default, a single daemon thread
+     * is used.
+     *
+     * @param scheduler the new scheduler
+     */
+    public void setScheduler(@NonNull ScheduledExecutorService scheduler) {
+        retryer.setScheduler(scheduler);
+    }
+
+    /**
+     * Register a listener that is called when the broker blocks or unblocks publishing on this connection, for instance
+     * because of a memory or disk alarm
+     *
+     * @param listener the listener
+     */
+    public void addBlockedListener(@NonNull ConnectionBlockedListener listener) {
+        blockedListeners.add(listener);
+    }
+
+    /**
+     * @return whether the broker currently blocks any of the physical connections. While blocked, publishing follows
+     * {@link Config#getBlockedPublishPolicy()}.
+     */
+    public boolean isBlocked() {
+        return slots.stream().anyMatch(ConnectionSlot::isBlocked)
+            || publishSlots.stream().anyMatch(ConnectionSlot::isBlocked);
+    }
+
+    /**
+     * Create a new AMQP channel. When the configuration specifies multiple connections, the channel is assigned to the
+     * connection that currently has the fewest channels. With separate publish connections, the channel publishes on
+     * one of those instead.
      *
      * @return the channel
      */
     public Channel createChannel() {
-        return new Channel(this, retryer);
+        val slot = leastLoadedSlot(slots);
+        slot.assignChannel();
+        ConnectionSlot publishSlot = null;
+        if (!publishSlots.isEmpty()) {
+            publishSlot = leastLoadedSlot(publishSlots);
+            publishSlot.assignChannel();
+        }
+        return new Channel(this, slot, publishSlot, retryer);
+    }
+
+    /**
+     * Publish a message on a pooled channel. Unlike {@link Channel#publish}, this method can be called from many
+     * threads at once without them waiting for each other, since every thread publishes on one of a pool of channels.
+     * The size of the pool is set by {@link Config#getPublisherPoolSize()}. Publisher confirms and spooling are not
+     * available for pooled publishing; use a dedicated {@link Channel} for those.
+     *
+     * @param spec the publish specification
+     */
+    public void publish(@NonNull PublishSpec spec) {
+        publisherPool.publish(spec);
+    }
+
+    /**
+     * Publish a message on a pooled channel using a template, avoiding allocations on the publishing path
+     *
+     * @param template the template with the settings for the message
+     * @param body     the message body
+     * @see #publish(PublishSpec)
+     * @see Channel#publish(PublishTemplate, byte[])
+     */
+    public void publish(@NonNull PublishTemplate template, byte[] body) {
+        publisherPool.publish(template, template.getSpec().getRoutingKey(), body);
+    }
+
+    /**
+     * Close all physical connections and release the threads of the backend. Channels created from this connection
+     * must not be used anymore afterwards.
+     */
+    public void close() {
+        slots.forEach(ConnectionSlot::close);
+        publishSlots.forEach(ConnectionSlot::close);
+        trying(backend::close).orElse(ex -> log.warn("Failed to close backend", ex));
+        if (ownExecutor != null) {
+            ownExecutor.shutdown();
+        }
     }
 
     /**
@@ -44,28 +193,27 @@ public class Connection {
     }
 
     /**
-     * Get the currently active connection implementation.
+     * Get the default execution mode as defined in the given connection configuration.
      *
-     * @return the actual implementation of an AMQP connection
+     * @return the default execution mode
      */
-    synchronized BackendConnection activeConnection() {
-        if (connection == null) {
-            connection = retryer.performWithRetry(
-                () -> backend.newConnection(config),
-                new RetryPolicy().withRetryAll(true)
-            );
-        }
-        return connection;
+    ExecutionMode getExecutionMode() {
+        return config.getExecutionMode();
     }
 
     /**
-     * Close and remove the currently active connection implementation.
-     * This will force a new connection to be created the next time {@link #activeConnection()} is called.
+     * Pick the connection slot that has the fewest channels assigned. Ties are broken round robin, so channels that
+     * are closed quickly still get spread over all connections.
      */
-    synchronized void reset() {
-        if (connection != null) {
-            trying(connection::close);
+    private ConnectionSlot leastLoadedSlot(List<ConnectionSlot> candidates) {
+        val start = Math.floorMod(nextSlot.getAndIncrement(), candidates.size());
+        ConnectionSlot best = null;
+        for (int i = 0; i < candidates.size(); i++) {
+            val slot = candidates.get((start + i) % candidates.size());
+            if (best == null || slot.getChannelCount() < best.getChannelCount()) {
+                best = slot;
+            }
         }
-        connection = null;
+        return best;
     }
 }
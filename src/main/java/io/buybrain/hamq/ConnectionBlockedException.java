@@ -0,0 +1,16 @@
+package io.buybrain.hamq;
+
+import lombok.Getter;
+
+/**
+ * Thrown when a message can not be published because the broker blocked the connection, see
+ * {@link BlockedPublishPolicy}.
+ */
+public class ConnectionBlockedException extends RuntimeException {
+    @Getter private final String reason;
+
+    public ConnectionBlockedException(String reason) {
+        super("Connection is blocked by the broker: " + reason);
+        this.reason = reason;
+    }
+}
@@ -0,0 +1,15 @@
+package io.buybrain.hamq;
+
+/**
+ * Listener for the broker blocking and unblocking publishing on a connection, as registered with
+ * {@link Connection#addBlockedListener}. Producers can use it to shed load while the broker can't accept messages.
+ * With multiple physical connections, it is called for each of them.
+ */
+public interface ConnectionBlockedListener {
+    /**
+     * @param reason the reason given by the broker, such as a low memory or disk alarm
+     */
+    void blocked(String reason);
+
+    void unblocked();
+}
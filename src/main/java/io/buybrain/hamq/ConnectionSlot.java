@@ -0,0 +1,328 @@
+package io.buybrain.hamq;
+
+import com.rabbitmq.client.BlockedListener;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+import lombok.Setter;
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static io.buybrain.util.Result.trying;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * One of the physical connections of a {@link Connection}. Every slot connects and resets independently, so a failing
+ * connection only interrupts the channels that were assigned to it. The exchanges, queues and bindings declared by
+ * those channels are kept in the topology registry of the slot, and restored once on every new connection. With
+ * multiple broker nodes, every connect tries the nodes in the order ranked by the shared {@link NodeSelector}.
+ */
+@Slf4j
+@RequiredArgsConstructor
+class ConnectionSlot {
+    @NonNull private final Config config;
+    @NonNull private final Backend backend;
+    @NonNull private final Retryer retryer;
+    @NonNull private final NodeSelector nodes;
+    // Active connection, read without locking. It is only removed through compare-and-set, so that concurrent resets
+    // after the same failure close it once.
+    private final AtomicReference<BackendConnection> connection = new AtomicReference<>();
+    // Connect that is in progress, so that a single thread connects while the others wait for it
+    private final AtomicReference<CompletableFuture<BackendConnection>> connecting = new AtomicReference<>();
+    // Broker node the active connection was made to
+    private volatile BrokerAddress connectedTo;
+    @Getter private final TopologyRegistry topology = new TopologyRegistry();
+    private final AtomicInteger channels = new AtomicInteger();
+    // Completed while the broker doesn't block the connection, and replaced by a pending future while it does
+    private volatile CompletableFuture<Void> unblocked = CompletableFuture.completedFuture(null);
+    private volatile String blockedReason;
+    @Setter private ConnectionBlockedListener blockedListener;
+
+    /**
+     * Get the currently active connection implementation, connecting if there is none. A new connection is only
+     * returned after the registered topology was restored on it. While the connection is up, this is a single volatile
+     * read. When it is not, one thread connects and the other threads wait for it to finish.
+     *
+     * @return the actual implementation of an AMQP connection
+     */
+    BackendConnection activeConnection() {
+        while (true) {
+            val active = connection.get();
+            if (active != null) {
+                return active;
+            }
+            val attempt = new CompletableFuture<BackendConnection>();
+            if (connecting.compareAndSet(null, attempt)) {
+                return connectOnce(attempt);
+            }
+            val inFlight = connecting.get();
+            if (inFlight != null) {
+                try {
+                    retryer.await(inFlight);
+                } catch (Exception ex) {
+                    if (Retryer.findTimeout(ex) != null && retryer.remainingNanos() == 0) {
+                        throw ex;
+                    }
+                    // When the other thread fails to connect, try again ourselves
+                }
+            }
+        }
+    }
+
+    private BackendConnection connectOnce(CompletableFuture<BackendConnection> attempt) {
+        try {
+            // Another thread may have connected between checking the connection and starting this attempt
+            BackendConnection conn = connection.get();
+            if (conn == null) {
+                val start = System.nanoTime();
+                // Based on the configured policy, so reconnects of many clients are spread out by its jitter.
+                // Connecting for an operation with a timeout gives up at its deadline, which this retry inherits.
+                val policy = config.getRetryPolicy().withRetryAll(true).withInternal(true);
+                conn = retryer.performWithRetry(this::connect, policy);
+                retryer.getMetrics().recordConnect(System.nanoTime() - start);
+                connection.set(conn);
+            }
+            attempt.complete(conn);
+            return conn;
+        } catch (Throwable ex) {
+            attempt.completeExceptionally(ex);
+            throw ex;
+        } finally {
+            connecting.set(null);
+        }
+    }
+
+    /**
+     * @return the active connection implementation, or null when there is none. Never connects.
+     */
+    BackendConnection currentConnection() {
+        return connection.get();
+    }
+
+    /**
+     * Connect to the first broker node that accepts the connection, in the order ranked by the node selector
+     */
+    private BackendConnection connect() throws Exception {
+        retryer.checkConnect();
+        Exception lastError = null;
+        for (val address : nodes.ranked()) {
+            val start = System.nanoTime();
+            BackendConnection conn;
+            try {
+                conn = backend.newConnection(config.forAddress(address));
+            } catch (Exception ex) {
+                log.warn("Could not connect to broker node {}", address, ex);
+                nodes.recordFailure(address);
+                lastError = ex;
+                continue;
+            }
+            nodes.recordSuccess(address, System.nanoTime() - start);
+            retryer.recordConnect(true);
+            watchBlocked(conn);
+            restoreTopology(conn);
+            connectedTo = address;
+            return conn;
+        }
+        retryer.recordConnect(false);
+        throw lastError;
+    }
+
+    private void restoreTopology(BackendConnection conn) throws Exception {
+        if (topology.size() > 0) {
+            val start = System.nanoTime();
+            try (val chan = conn.newChannel()) {
+                topology.restore(chan);
+            } catch (Exception ex) {
+                trying(conn::close);
+                throw ex;
+            }
+            retryer.getMetrics().recordOperation(OperationType.TOPOLOGY_RESTORE, 1, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Close and remove the given connection implementation if it is still the active one. This will force a new
+     * connection to be created the next time {@link #activeConnection()} is called. Allows multiple users of the
+     * connection that observe the same failure to trigger only a single reconnect.
+     *
+     * @param failed the connection implementation that failed
+     */
+    void reset(@NonNull BackendConnection failed) {
+        val address = connectedTo;
+        if (connection.compareAndSet(failed, null)) {
+            trying(failed::close);
+            // The node may be going down, so the next connect should prefer the other nodes
+            nodes.recordFailure(address);
+            // A new connection starts out unblocked, the broker tells it again if the alarm is still raised
+            handleUnblocked(failed);
+        }
+    }
+
+    /**
+     * Close and remove the active connection implementation, if any. A later call to {@link #activeConnection()}
+     * connects again.
+     */
+    void close() {
+        val conn = connection.getAndSet(null);
+        if (conn != null) {
+            trying(conn::close);
+        }
+    }
+
+    private void watchBlocked(BackendConnection conn) {
+        conn.addBlockedListener(new BlockedListener() {
+            @Override
+            public void handleBlocked(String reason) {
+                ConnectionSlot.this.handleBlocked(conn, reason);
+            }
+
+            @Override
+            public void handleUnblocked() {
+                ConnectionSlot.this.handleUnblocked(conn);
+            }
+        });
+    }
+
+    private synchronized void handleBlocked(BackendConnection conn, String reason) {
+        if (connection.get() != null && connection.get() != conn) {
+            // Late signal from a connection that was already replaced
+            return;
+        }
+        log.warn("Broker blocked the connection to {}: {}", connectedTo, reason);
+        blockedReason = reason;
+        if (unblocked.isDone()) {
+            unblocked = new CompletableFuture<>();
+        }
+        val listener = blockedListener;
+        if (listener != null) {
+            trying(() -> listener.blocked(reason)).orElse(ex -> log.warn("Blocked listener failed", ex));
+        }
+    }
+
+    private synchronized void handleUnblocked(BackendConnection conn) {
+        if (connection.get() != null && connection.get() != conn || unblocked.isDone()) {
+            return;
+        }
+        log.info("Broker unblocked the connection to {}", connectedTo);
+        blockedReason = null;
+        unblocked.complete(null);
+        val listener = blockedListener;
+        if (listener != null) {
+            trying(listener::unblocked).orElse(ex -> log.warn("Blocked listener failed", ex));
+        }
+    }
+
+    /**
+     * @return whether the broker currently blocks the connection
+     */
+    boolean isBlocked() {
+        return !unblocked.isDone();
+    }
+
+    /**
+     * Apply the blocked publish policy of the configuration before publishing. While the connection isn't blocked,
+     * this is a single volatile read.
+     *
+     * @throws ConnectionBlockedException when the policy is to fail, or the timeout passed while waiting
+     * @throws OperationTimeoutException when the deadline of the publish operation passed while waiting
+     */
+    @SneakyThrows(InterruptedException.class)
+    void awaitPublishable() {
+        val future = unblocked;
+        if (future.isDone()) {
+            return;
+        }
+        val reason = blockedReason;
+        if (config.getBlockedPublishPolicy() == BlockedPublishPolicy.FAIL) {
+            throw new ConnectionBlockedException(reason);
+        }
+        val timeout = config.getBlockedPublishTimeout();
+        val remaining = retryer.remainingNanos();
+        try {
+            if (timeout == null && remaining == Long.MAX_VALUE) {
+                future.get();
+            } else {
+                future.get(timeout == null ? remaining : Math.min(timeout.toNanos(), remaining), NANOSECONDS);
+            }
+        } catch (TimeoutException ex) {
+            if (timeout == null || remaining < timeout.toNanos()) {
+                // The deadline of the operation passed before the blocked publish timeout
+                throw new OperationTimeoutException(new ConnectionBlockedException(reason));
+            }
+            throw new ConnectionBlockedException(reason);
+        } catch (ExecutionException ex) {
+            // Never completed exceptionally
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Apply the blocked publish policy of the configuration before publishing, without blocking the calling thread
+     *
+     * @param operationTimeout the timeout of the publish operation, or null when it has none
+     * @return a future that completes once publishing may continue, or exceptionally with a
+     * {@link ConnectionBlockedException} or an {@link OperationTimeoutException}
+     */
+    CompletableFuture<Void> publishable(Duration operationTimeout) {
+        val future = unblocked;
+        if (future.isDone()) {
+            return future;
+        }
+        val result = new CompletableFuture<Void>();
+        val reason = blockedReason;
+        if (config.getBlockedPublishPolicy() == BlockedPublishPolicy.FAIL) {
+            result.completeExceptionally(new ConnectionBlockedException(reason));
+            return result;
+        }
+        future.thenRun(() -> result.complete(null));
+        val timeout = config.getBlockedPublishTimeout();
+        if (timeout != null) {
+            retryer.getScheduler().schedule(
+                () -> result.completeExceptionally(new ConnectionBlockedException(reason)),
+                timeout.toMillis(),
+                MILLISECONDS
+            );
+        }
+        if (operationTimeout != null) {
+            val cause = new ConnectionBlockedException(reason);
+            retryer.getScheduler().schedule(
+                () -> result.completeExceptionally(new OperationTimeoutException(cause)),
+                operationTimeout.toMillis(),
+                MILLISECONDS
+            );
+        }
+        return result;
+    }
+
+    /**
+     * Wait until the broker doesn't block the connection, however long that takes, or until the thread is interrupted
+     */
+    @SneakyThrows({InterruptedException.class, ExecutionException.class})
+    void awaitUnblocked() {
+        unblocked.get();
+    }
+
+    /**
+     * @return the number of channels that are currently assigned to this slot
+     */
+    int getChannelCount() {
+        return channels.get();
+    }
+
+    void assignChannel() {
+        channels.incrementAndGet();
+    }
+
+    void releaseChannel() {
+        channels.decrementAndGet();
+    }
+}
@@ -15,4 +15,15 @@ public class Connections {
     public static Connection create(@NonNull Config config) {
         return new Connection(config, new AMQPBackend());
     }
+
+    /**
+     * Create a HAmq connection to a broker that runs in the current process, for tests and simulations
+     *
+     * @param config configuration for retrying. Connection settings such as host and credentials are ignored.
+     * @param broker the broker to connect to
+     * @return the new connection
+     */
+    public static Connection createInMemory(@NonNull Config config, @NonNull InMemoryBroker broker) {
+        return new Connection(config, new InMemoryBackend(broker));
+    }
 }
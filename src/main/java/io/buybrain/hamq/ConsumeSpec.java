@@ -4,8 +4,10 @@ import io.buybrain.util.function.ThrowingConsumer;
 import lombok.*;
 import lombok.experimental.Wither;
 
+import java.time.Duration;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.function.Function;
 
 import static java.util.Collections.emptyMap;
 
@@ -22,6 +24,49 @@ public class ConsumeSpec extends OperationSpec<ConsumeSpec> {
     boolean noLocal;
     boolean exclusive;
     @NonNull Map<String, Object> args;
+    /**
+     * Maximum number of acknowledgements to combine into a single multiple=true ack. Coalescing is disabled when 1.
+     */
+    int ackBatchSize;
+    /**
+     * Maximum time an acknowledgement may be held back when coalescing is enabled
+     */
+    @NonNull Duration ackBatchWindow;
+    /**
+     * Number of worker threads that process deliveries concurrently. When 1, deliveries are processed on the consumer
+     * thread of the client library, or on a single virtual thread with {@link ExecutionMode#VIRTUAL_THREADS}. Make
+     * sure the channel prefetch is at least as high to keep all workers busy.
+     */
+    int concurrency;
+    /**
+     * Function that extracts the ordering key of a delivery when processing concurrently. Deliveries with the same key
+     * are processed one at a time in delivery order. When null, deliveries are processed in any order.
+     */
+    Function<Delivery, ?> orderingKey;
+    /**
+     * Execution mode for delivery callbacks. When null, the execution mode of the connection configuration is used.
+     */
+    ExecutionMode executionMode;
+    /**
+     * Maximum number of deliveries that are processed at the same time when dispatching to workers or virtual threads.
+     * When 0, the prefetch amount of the channel at the time of consuming is used as the limit, if any.
+     */
+    int maxInFlight;
+    /**
+     * Function that extracts the key for recognizing redeliveries of messages that were already processed. When a
+     * channel is lost before acks reach the broker, redelivered messages with a key that was acked recently are acked
+     * again without calling the callback. Deduplication is disabled when null, and skipped for deliveries without a
+     * key.
+     */
+    Function<Delivery, ?> deduplicationKey;
+    /**
+     * Maximum number of recently acked keys to remember for deduplication
+     */
+    int deduplicationCacheSize;
+    /**
+     * Time to remember acked keys for deduplication
+     */
+    @NonNull Duration deduplicationTtl;
 
     /**
      * @param queue the name of the queue to consume
@@ -33,6 +78,48 @@ public class ConsumeSpec extends OperationSpec<ConsumeSpec> {
         noLocal = false;
         exclusive = false;
         args = emptyMap();
+        ackBatchSize = 1;
+        ackBatchWindow = Duration.ofMillis(100);
+        concurrency = 1;
+        orderingKey = null;
+        executionMode = null;
+        maxInFlight = 0;
+        deduplicationKey = null;
+        deduplicationCacheSize = 10_000;
+        deduplicationTtl = Duration.ofMinutes(5);
+    }
+
+    /**
+     * Process deliveries with the same routing key in delivery order
+     *
+     * @return the new specification
+     */
+    public ConsumeSpec withOrderingByRoutingKey() {
+        return withOrderingKey(delivery -> delivery.getEnvelope().getRoutingKey());
+    }
+
+    /**
+     * Process deliveries with the same value for the given header in delivery order
+     *
+     * @param header the name of the header
+     * @return the new specification
+     */
+    public ConsumeSpec withOrderingByHeader(@NonNull String header) {
+        return withOrderingKey(delivery -> {
+            val headers = delivery.getProperties() == null ? null : delivery.getProperties().getHeaders();
+            return headers == null ? null : headers.get(header);
+        });
+    }
+
+    /**
+     * Skip redeliveries of messages that were already processed, recognized by their message id
+     *
+     * @return the new specification
+     */
+    public ConsumeSpec withDeduplicationByMessageId() {
+        return withDeduplicationKey(delivery -> delivery.getProperties() == null
+            ? null
+            : delivery.getProperties().getMessageId());
     }
 
     public ConsumeSpec withArg(@NonNull String name, @NonNull Object value) {
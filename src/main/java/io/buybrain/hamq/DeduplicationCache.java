@@ -0,0 +1,69 @@
+package io.buybrain.hamq;
+
+import lombok.NonNull;
+import lombok.val;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.function.LongSupplier;
+
+/**
+ * Bounded cache of the keys of deliveries that a consumer completed recently, for recognizing redeliveries of work that
+ * was already done. Keys are evicted when the cache is full, oldest first, and when they are older than the time to
+ * live.
+ */
+class DeduplicationCache {
+    private final int maxSize;
+    private final long ttlNanos;
+    private final LongSupplier nanoTime;
+    // Keys in order of completion, with the moment they were completed
+    private final LinkedHashMap<Object, Long> completed = new LinkedHashMap<>();
+
+    DeduplicationCache(int maxSize, @NonNull Duration ttl) {
+        this(maxSize, ttl, System::nanoTime);
+    }
+
+    DeduplicationCache(int maxSize, @NonNull Duration ttl, @NonNull LongSupplier nanoTime) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("Deduplication cache size must be at least 1");
+        }
+        this.maxSize = maxSize;
+        this.ttlNanos = ttl.toNanos();
+        this.nanoTime = nanoTime;
+    }
+
+    /**
+     * @param key the key of a completed delivery
+     */
+    synchronized void add(@NonNull Object key) {
+        val now = nanoTime.getAsLong();
+        // Remove first, so a key that completes again moves to the end
+        completed.remove(key);
+        completed.put(key, now);
+        expire(now);
+    }
+
+    /**
+     * @param key the key of a delivery
+     * @return whether a delivery with the same key was completed recently
+     */
+    synchronized boolean contains(@NonNull Object key) {
+        expire(nanoTime.getAsLong());
+        return completed.containsKey(key);
+    }
+
+    synchronized int size() {
+        return completed.size();
+    }
+
+    private void expire(long now) {
+        val it = completed.values().iterator();
+        while (it.hasNext()) {
+            val completedAt = it.next();
+            if (completed.size() <= maxSize && now - completedAt < ttlNanos) {
+                return;
+            }
+            it.remove();
+        }
+    }
+}
@@ -2,6 +2,8 @@ package io.buybrain.hamq;
 
 import com.rabbitmq.client.AMQP;
 import com.rabbitmq.client.Envelope;
+import lombok.AccessLevel;
+import lombok.Getter;
 import lombok.Value;
 
 import java.io.IOException;
@@ -12,16 +14,19 @@ public class Delivery {
     Envelope envelope;
     AMQP.BasicProperties properties;
     byte[] body;
+    // Moment the delivery was received according to System.nanoTime(), for measuring ack latency
+    @Getter(AccessLevel.PACKAGE) long receivedNanos;
+    @Getter(AccessLevel.NONE) Acknowledger acknowledger;
 
     public String getBodyAsString() {
         return new String(body);
     }
 
     public void ack() throws IOException {
-        channel.basicAck(envelope.getDeliveryTag());
+        acknowledger.ack(this);
     }
 
     public void nack() throws IOException {
-        channel.basicNack(envelope.getDeliveryTag());
+        acknowledger.nack(this);
     }
 }
@@ -0,0 +1,121 @@
+package io.buybrain.hamq;
+
+import lombok.NonNull;
+import lombok.val;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Dispatches deliveries of a consumer to worker threads. Without an ordering key, deliveries are processed by whichever
+ * worker is free, or by a new virtual thread per delivery when the concurrency is higher than 1. With an ordering key,
+ * every worker has its own queue and deliveries with the same key always end up in the same queue, so they are
+ * processed in the order in which they were delivered.
+ * <p>
+ * The number of deliveries that are dispatched but not yet processed can be capped, in which case dispatching blocks
+ * the consumer thread of the client library until a worker finishes.
+ */
+class DeliveryDispatcher {
+    private final ExecutorService[] workers;
+    private final Semaphore inFlight;
+
+    private DeliveryDispatcher(ExecutorService[] workers, Semaphore inFlight) {
+        this.workers = workers;
+        this.inFlight = inFlight;
+    }
+
+    /**
+     * Create a dispatcher for a consumer
+     *
+     * @param spec        the consume specification
+     * @param mode        the execution mode to use
+     * @param maxInFlight maximum number of deliveries that are processed at the same time, or 0 for no limit
+     * @param name        prefix for the names of worker threads
+     * @return the dispatcher, or null if deliveries should be processed on the consumer thread itself
+     */
+    static DeliveryDispatcher create(
+        @NonNull ConsumeSpec spec,
+        @NonNull ExecutionMode mode,
+        int maxInFlight,
+        @NonNull String name
+    ) {
+        val virtual = mode == ExecutionMode.VIRTUAL_THREADS;
+        if (!virtual && spec.getConcurrency() <= 1) {
+            return null;
+        }
+        val threadFactory = virtual ? VirtualThreads.threadFactory(name) : daemonThreadFactory(name);
+        val inFlight = maxInFlight > 0 ? new Semaphore(maxInFlight) : null;
+
+        if (spec.getOrderingKey() == null) {
+            ExecutorService executor;
+            if (spec.getConcurrency() <= 1) {
+                // A single virtual thread keeps the deliveries in the order of the queue
+                executor = Executors.newSingleThreadExecutor(threadFactory);
+            } else if (virtual) {
+                if (inFlight == null) {
+                    throw new IllegalArgumentException(
+                        "Concurrent consuming on virtual threads requires a prefetch or a maximum number in flight"
+                    );
+                }
+                executor = VirtualThreads.newExecutor();
+            } else {
+                executor = Executors.newFixedThreadPool(spec.getConcurrency(), threadFactory);
+            }
+            return new DeliveryDispatcher(new ExecutorService[]{executor}, inFlight);
+        }
+        val workers = new ExecutorService[Math.max(1, spec.getConcurrency())];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = Executors.newSingleThreadExecutor(threadFactory);
+        }
+        return new DeliveryDispatcher(workers, inFlight);
+    }
+
+    /**
+     * Schedule a delivery for processing
+     *
+     * @param key  the ordering key of the delivery, or null if it can be processed in any order
+     * @param task the processing task
+     */
+    void dispatch(Object key, @NonNull Runnable task) {
+        val index = key == null ? 0 : Math.floorMod(key.hashCode(), workers.length);
+        if (inFlight == null) {
+            workers[index].execute(task);
+            return;
+        }
+        inFlight.acquireUninterruptibly();
+        try {
+            workers[index].execute(() -> {
+                try {
+                    task.run();
+                } finally {
+                    inFlight.release();
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            inFlight.release();
+            throw ex;
+        }
+    }
+
+    /**
+     * Stop all workers. Deliveries that were not processed yet are discarded and will be redelivered by the broker.
+     */
+    void shutdown() {
+        for (val worker : workers) {
+            worker.shutdownNow();
+        }
+    }
+
+    private static ThreadFactory daemonThreadFactory(String name) {
+        val counter = new AtomicInteger();
+        return runnable -> {
+            val thread = new Thread(runnable, name + "-" + counter.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
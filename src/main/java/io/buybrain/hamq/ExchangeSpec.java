@@ -12,7 +12,7 @@ import static java.util.Collections.emptyMap;
  * Specification for declaring exchanges as used by {@link Channel#exchangeDeclare}.
  */
 @Value
-@EqualsAndHashCode(callSuper = true)
+@EqualsAndHashCode(callSuper = false)
 @Wither
 @AllArgsConstructor
 public class ExchangeSpec extends OperationSpec<ExchangeSpec> {
@@ -0,0 +1,16 @@
+package io.buybrain.hamq;
+
+/**
+ * Determines on which kind of threads consumer callbacks and retried asynchronous operations are executed
+ */
+public enum ExecutionMode {
+    /**
+     * Use regular platform threads
+     */
+    PLATFORM_THREADS,
+    /**
+     * Run delivery callbacks and asynchronous retry attempts on virtual threads. With a consumer concurrency higher
+     * than 1, every delivery gets its own virtual thread. Requires Java 21 or higher at runtime.
+     */
+    VIRTUAL_THREADS
+}
@@ -0,0 +1,21 @@
+package io.buybrain.hamq;
+
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * Backend that connects to an {@link InMemoryBroker} instead of a real AMQP broker
+ */
+@RequiredArgsConstructor
+class InMemoryBackend implements Backend {
+    @NonNull private final InMemoryBroker broker;
+
+    @Override
+    public BackendConnection newConnection(@NonNull Config config) throws Exception {
+        return broker.connect();
+    }
+
+    @Override
+    public void close() {
+    }
+}
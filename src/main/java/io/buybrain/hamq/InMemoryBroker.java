@@ -0,0 +1,494 @@
+package io.buybrain.hamq;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Consumer;
+import com.rabbitmq.client.ShutdownSignalException;
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+import lombok.Value;
+import lombok.val;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static io.buybrain.util.Result.trying;
+
+/**
+ * AMQP broker that runs inside the current process, for testing and load simulation without RabbitMQ. Create
+ * connections to it with {@link Connections#createInMemory}.
+ * <p>
+ * The broker models direct, fanout and topic exchanges, queues, bindings, per-consumer and per-channel prefetch,
+ * publisher confirms, acks and nacks. Deliveries are pushed to consumers on a worker thread per channel, and messages
+ * that were not acked when their channel closed are redelivered. Durability is not modelled, everything lives in memory.
+ * <p>
+ * Faults can be injected to test recovery: connections can be dropped, channels can be failed, the broker can be made
+ * unavailable or raise a resource alarm, and every broker operation can be delayed.
+ */
+public class InMemoryBroker {
+    private static final int REPLY_SUCCESS = 200;
+    private static final int CONNECTION_FORCED = 320;
+    private static final int ACCESS_REFUSED = 403;
+    private static final int NOT_FOUND = 404;
+    private static final int RESOURCE_LOCKED = 405;
+    static final int PRECONDITION_FAILED = 406;
+    private static final int COMMAND_INVALID = 503;
+
+    private final Map<String, Exchange> exchanges = new HashMap<>();
+    private final Map<String, Queue> queues = new HashMap<>();
+    private final Set<InMemoryConnection> connections = new HashSet<>();
+    private volatile long latencyNanos;
+    private boolean available = true;
+    // Reason of the simulated resource alarm, or null when there is none. Changes are signalled on the alarm lock.
+    private volatile String blockedReason;
+    private final Object alarm = new Object();
+
+    /**
+     * Delay every operation on the broker, simulating network latency
+     *
+     * @param latency the delay, or zero for no delay
+     */
+    public void setLatency(@NonNull Duration latency) {
+        latencyNanos = latency.toNanos();
+    }
+
+    /**
+     * Make the broker unavailable, or available again. While unavailable, all connections are dropped and new
+     * connections are refused.
+     *
+     * @param available whether the broker accepts connections
+     */
+    public synchronized void setAvailable(boolean available) {
+        this.available = available;
+        if (!available) {
+            dropConnections();
+        }
+    }
+
+    /**
+     * Raise or clear a resource alarm, as if the broker ran low on memory or disk space. While raised, connections are
+     * notified that they are blocked, and publishing on them waits until the alarm is cleared.
+     *
+     * @param reason the reason of the alarm, or null to clear it
+     */
+    public void setBlocked(String reason) {
+        final List<InMemoryConnection> notified;
+        synchronized (this) {
+            notified = new ArrayList<>(connections);
+        }
+        synchronized (alarm) {
+            blockedReason = reason;
+            alarm.notifyAll();
+        }
+        for (val connection : notified) {
+            for (val listener : connection.getBlockedListeners()) {
+                trying(() -> {
+                    if (reason == null) {
+                        listener.handleUnblocked();
+                    } else {
+                        listener.handleBlocked(reason);
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Drop all connections, as if the network failed or the broker restarted. Channels and consumers receive a hard
+     * shutdown signal, unacked messages are requeued and exclusive queues are deleted.
+     */
+    public synchronized void dropConnections() {
+        for (val connection : new ArrayList<>(connections)) {
+            closeConnection(connection, connectionSignal(CONNECTION_FORCED, "broker forced connection closure", false));
+        }
+    }
+
+    /**
+     * Close all channels with a channel error, while their connections stay open. Consumers receive a shutdown signal
+     * and unacked messages are requeued.
+     */
+    public synchronized void failChannels() {
+        for (val connection : connections) {
+            for (val channel : new ArrayList<>(connection.getChannels())) {
+                closeChannel(channel, channelSignal(PRECONDITION_FAILED, "injected channel failure", false, channel));
+            }
+        }
+    }
+
+    /**
+     * @param queue the name of a queue
+     * @return the number of messages in the queue that are ready for delivery, excluding unacked messages
+     */
+    public synchronized int getMessageCount(@NonNull String queue) {
+        return requireQueue(queue).ready.size();
+    }
+
+    /**
+     * @param queue the name of a queue
+     * @return the number of consumers on the queue
+     */
+    public synchronized int getConsumerCount(@NonNull String queue) {
+        return requireQueue(queue).subscriptions.size();
+    }
+
+    private Queue requireQueue(String name) {
+        val queue = queues.get(name);
+        if (queue == null) {
+            throw new IllegalArgumentException("Queue " + name + " does not exist");
+        }
+        return queue;
+    }
+
+    String getBlockedReason() {
+        return blockedReason;
+    }
+
+    /**
+     * Wait until the resource alarm is cleared, if one is raised
+     */
+    void awaitUnblocked() throws IOException {
+        synchronized (alarm) {
+            while (blockedReason != null) {
+                try {
+                    alarm.wait();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while blocked by resource alarm");
+                }
+            }
+        }
+    }
+
+    /**
+     * Wait for the configured latency
+     */
+    void simulateLatency() throws IOException {
+        val latency = latencyNanos;
+        if (latency > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(latency);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while simulating latency");
+            }
+        }
+    }
+
+    InMemoryConnection connect() throws IOException {
+        simulateLatency();
+        synchronized (this) {
+            if (!available) {
+                throw new ConnectException("Connection refused");
+            }
+            val connection = new InMemoryConnection(this);
+            connections.add(connection);
+            return connection;
+        }
+    }
+
+    // All methods below must be called while holding the lock on the broker
+
+    void declareExchange(InMemoryChannel channel, String name, String type) throws IOException {
+        val existing = exchanges.get(name);
+        if (existing != null) {
+            if (!existing.type.equals(type)) {
+                throw channelError(channel, PRECONDITION_FAILED, "inequivalent arg 'type' for exchange '" + name + "'");
+            }
+            return;
+        }
+        if (!type.equals("direct") && !type.equals("fanout") && !type.equals("topic")) {
+            throw channelError(channel, COMMAND_INVALID, "unknown exchange type '" + type + "'");
+        }
+        exchanges.put(name, new Exchange(type));
+    }
+
+    void declareQueue(
+        InMemoryChannel channel,
+        String name,
+        boolean durable,
+        boolean exclusive,
+        boolean autoDelete
+    ) throws IOException {
+        val existing = queues.get(name);
+        if (existing != null) {
+            checkExclusiveAccess(channel, existing);
+            if (existing.durable != durable || existing.exclusive != exclusive || existing.autoDelete != autoDelete) {
+                throw channelError(channel, PRECONDITION_FAILED, "inequivalent arg for queue '" + name + "'");
+            }
+            return;
+        }
+        queues.put(name, new Queue(name, durable, exclusive, autoDelete, exclusive ? channel.getConnection() : null));
+    }
+
+    void bindQueue(InMemoryChannel channel, String queueName, String exchangeName, String routingKey)
+        throws IOException {
+        val queue = queues.get(queueName);
+        if (queue == null) {
+            throw channelError(channel, NOT_FOUND, "no queue '" + queueName + "'");
+        }
+        checkExclusiveAccess(channel, queue);
+        val exchange = exchanges.get(exchangeName);
+        if (exchange == null) {
+            throw channelError(channel, NOT_FOUND, "no exchange '" + exchangeName + "'");
+        }
+        val binding = new Binding(queue, routingKey);
+        if (!exchange.bindings.contains(binding)) {
+            exchange.bindings.add(binding);
+        }
+    }
+
+    void publish(
+        InMemoryChannel channel,
+        String exchangeName,
+        String routingKey,
+        AMQP.BasicProperties props,
+        byte[] body
+    ) {
+        final Set<Queue> targets = new LinkedHashSet<>();
+        if (exchangeName.isEmpty()) {
+            val queue = queues.get(routingKey);
+            if (queue != null) {
+                targets.add(queue);
+            }
+        } else {
+            val exchange = exchanges.get(exchangeName);
+            if (exchange == null) {
+                // Like a real broker, the channel is closed asynchronously instead of failing the publish itself
+                closeChannel(channel, channelSignal(NOT_FOUND, "no exchange '" + exchangeName + "'", false, channel));
+                return;
+            }
+            exchange.route(routingKey, targets);
+        }
+        for (val queue : targets) {
+            queue.ready.addLast(new Message(exchangeName, routingKey, props, body, false));
+            dispatch(queue);
+        }
+    }
+
+    Subscription subscribe(
+        InMemoryChannel channel,
+        String queueName,
+        String consumerTag,
+        boolean exclusive,
+        int prefetch,
+        Consumer consumer
+    ) throws IOException {
+        val queue = queues.get(queueName);
+        if (queue == null) {
+            throw channelError(channel, NOT_FOUND, "no queue '" + queueName + "'");
+        }
+        checkExclusiveAccess(channel, queue);
+        val hasExclusiveConsumer = queue.subscriptions.stream().anyMatch(subscription -> subscription.exclusive);
+        if (hasExclusiveConsumer || (exclusive && !queue.subscriptions.isEmpty())) {
+            throw channelError(channel, ACCESS_REFUSED, "queue '" + queueName + "' in exclusive use");
+        }
+        val subscription = new Subscription(channel, queue, consumerTag, consumer, exclusive, prefetch);
+        queue.subscriptions.add(subscription);
+        return subscription;
+    }
+
+    void unsubscribe(Subscription subscription) {
+        val queue = subscription.queue;
+        queue.subscriptions.remove(subscription);
+        if (queue.autoDelete && queue.subscriptions.isEmpty()) {
+            deleteQueue(queue);
+        }
+    }
+
+    /**
+     * Push ready messages of a queue to its consumers, as far as their prefetch allows
+     */
+    void dispatch(Queue queue) {
+        while (!queue.ready.isEmpty()) {
+            val subscription = nextAvailable(queue);
+            if (subscription == null) {
+                return;
+            }
+            subscription.channel.deliver(subscription, queue.ready.pollFirst());
+        }
+    }
+
+    private Subscription nextAvailable(Queue queue) {
+        val count = queue.subscriptions.size();
+        for (int i = 0; i < count; i++) {
+            val subscription = queue.subscriptions.get((queue.nextSubscription + i) % count);
+            val withinPrefetch = subscription.prefetch == 0 || subscription.unacked < subscription.prefetch;
+            if (withinPrefetch && subscription.channel.hasCapacity()) {
+                queue.nextSubscription = (queue.nextSubscription + i + 1) % count;
+                return subscription;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Put a message that was not acked back at the front of its queue
+     */
+    void requeue(Queue queue, Message message) {
+        if (queues.get(queue.name) == queue) {
+            queue.ready.addFirst(message.redelivered());
+        }
+    }
+
+    void closeChannel(InMemoryChannel channel, ShutdownSignalException signal) {
+        channel.shutdown(signal);
+        channel.getConnection().getChannels().remove(channel);
+    }
+
+    void closeConnection(InMemoryConnection connection, ShutdownSignalException signal) {
+        if (!connections.remove(connection)) {
+            return;
+        }
+        connection.setCloseReason(signal);
+        for (val channel : new ArrayList<>(connection.getChannels())) {
+            closeChannel(channel, signal);
+        }
+        for (val queue : new ArrayList<>(queues.values())) {
+            if (queue.owner == connection) {
+                deleteQueue(queue);
+            }
+        }
+    }
+
+    /**
+     * Close a channel because of an error in one of its operations
+     *
+     * @return the exception to throw from the operation
+     */
+    IOException channelError(InMemoryChannel channel, int code, String text) {
+        val signal = channelSignal(code, text, false, channel);
+        closeChannel(channel, signal);
+        return new IOException(signal.getMessage(), signal);
+    }
+
+    private void checkExclusiveAccess(InMemoryChannel channel, Queue queue) throws IOException {
+        if (queue.owner != null && queue.owner != channel.getConnection()) {
+            throw channelError(
+                channel,
+                RESOURCE_LOCKED,
+                "cannot obtain exclusive access to locked queue '" + queue.name + "'"
+            );
+        }
+    }
+
+    private void deleteQueue(Queue queue) {
+        queues.remove(queue.name);
+        for (val exchange : exchanges.values()) {
+            exchange.bindings.removeIf(binding -> binding.queue == queue);
+        }
+    }
+
+    static ShutdownSignalException channelSignal(int code, String text, boolean byApplication, Object ref) {
+        val method = new AMQP.Channel.Close.Builder().replyCode(code).replyText(text).build();
+        return new ShutdownSignalException(false, byApplication, method, ref);
+    }
+
+    static ShutdownSignalException connectionSignal(int code, String text, boolean byApplication) {
+        val method = new AMQP.Connection.Close.Builder().replyCode(code).replyText(text).build();
+        return new ShutdownSignalException(true, byApplication, method, null);
+    }
+
+    static ShutdownSignalException closedByApplication(boolean connection, Object ref) {
+        return connection
+            ? connectionSignal(REPLY_SUCCESS, "OK", true)
+            : channelSignal(REPLY_SUCCESS, "OK", true, ref);
+    }
+
+    /**
+     * Check whether a routing key matches a topic binding pattern, in which * matches a single word and # matches zero
+     * or more words
+     */
+    static boolean matchesTopic(String pattern, String routingKey) {
+        return matchesTopic(pattern.split("\\.", -1), 0, routingKey.split("\\.", -1), 0);
+    }
+
+    private static boolean matchesTopic(String[] pattern, int p, String[] words, int w) {
+        if (p == pattern.length) {
+            return w == words.length;
+        }
+        if (pattern[p].equals("#")) {
+            for (int skip = w; skip <= words.length; skip++) {
+                if (matchesTopic(pattern, p + 1, words, skip)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        if (w == words.length) {
+            return false;
+        }
+        return (pattern[p].equals("*") || pattern[p].equals(words[w])) && matchesTopic(pattern, p + 1, words, w + 1);
+    }
+
+    @RequiredArgsConstructor
+    private static class Exchange {
+        private final String type;
+        private final List<Binding> bindings = new ArrayList<>();
+
+        void route(String routingKey, Set<Queue> targets) {
+            for (val binding : bindings) {
+                val matches = type.equals("fanout")
+                    || (type.equals("direct") && binding.routingKey.equals(routingKey))
+                    || (type.equals("topic") && matchesTopic(binding.routingKey, routingKey));
+                if (matches) {
+                    targets.add(binding.queue);
+                }
+            }
+        }
+    }
+
+    // Queues don't override equals, so bindings are equal when they bind the same queue instance with the same key
+    @Value
+    private static class Binding {
+        Queue queue;
+        String routingKey;
+    }
+
+    @RequiredArgsConstructor
+    static class Queue {
+        private final String name;
+        private final boolean durable;
+        private final boolean exclusive;
+        private final boolean autoDelete;
+        // Connection that declared the queue if it is exclusive
+        private final InMemoryConnection owner;
+        private final Deque<Message> ready = new ArrayDeque<>();
+        private final List<Subscription> subscriptions = new ArrayList<>();
+        private int nextSubscription;
+    }
+
+    @RequiredArgsConstructor
+    static class Message {
+        final String exchange;
+        final String routingKey;
+        final AMQP.BasicProperties props;
+        final byte[] body;
+        final boolean redelivered;
+
+        Message redelivered() {
+            return redelivered ? this : new Message(exchange, routingKey, props, body, true);
+        }
+    }
+
+    @RequiredArgsConstructor
+    static class Subscription {
+        final InMemoryChannel channel;
+        final Queue queue;
+        final String consumerTag;
+        final Consumer consumer;
+        final boolean exclusive;
+        final int prefetch;
+        int unacked;
+    }
+}
@@ -0,0 +1,377 @@
+package io.buybrain.hamq;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.AlreadyClosedException;
+import com.rabbitmq.client.ConfirmListener;
+import com.rabbitmq.client.Consumer;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.ShutdownSignalException;
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Channel on an {@link InMemoryBroker}. Operations run synchronously while holding the lock on the broker, which also
+ * guards all state of the channel. Deliveries, confirms and other callbacks are handed to a worker thread per channel,
+ * so they arrive in order and never while the broker is locked.
+ */
+@Slf4j
+class InMemoryChannel implements BackendChannel {
+    private static final AtomicInteger workerCounter = new AtomicInteger();
+
+    private final InMemoryBroker broker;
+    @Getter(AccessLevel.PACKAGE) private final InMemoryConnection connection;
+    private final ExecutorService worker;
+    private final List<ConfirmListener> confirmListeners = new CopyOnWriteArrayList<>();
+
+    private final NavigableMap<Long, Unacked> unacked = new TreeMap<>();
+    private final Map<String, InMemoryBroker.Subscription> subscriptions = new HashMap<>();
+    private long nextDeliveryTag = 1;
+    private int prefetch;
+    private int globalPrefetch;
+    private boolean confirming;
+    private long nextPublishSeqNo = 1;
+    private ShutdownSignalException closeReason;
+
+    InMemoryChannel(@NonNull InMemoryBroker broker, @NonNull InMemoryConnection connection) {
+        this.broker = broker;
+        this.connection = connection;
+        worker = Executors.newSingleThreadExecutor(runnable -> {
+            val thread = new Thread(runnable, "hamq-in-memory-" + workerCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public void exchangeDeclare(
+        @NonNull String exchange,
+        @NonNull String type,
+        boolean durable,
+        boolean autoDelete,
+        boolean internal,
+        @NonNull Map<String, Object> arguments
+    ) throws IOException {
+        broker.simulateLatency();
+        synchronized (broker) {
+            ensureOpen();
+            broker.declareExchange(this, exchange, type);
+        }
+    }
+
+    @Override
+    public void exchangeDeclareNoWait(
+        @NonNull String exchange,
+        @NonNull String type,
+        boolean durable,
+        boolean autoDelete,
+        boolean internal,
+        @NonNull Map<String, Object> arguments
+    ) throws IOException {
+        exchangeDeclare(exchange, type, durable, autoDelete, internal, arguments);
+    }
+
+    @Override
+    public void queueDeclare(
+        @NonNull String queue,
+        boolean durable,
+        boolean exclusive,
+        boolean autoDelete,
+        @NonNull Map<String, Object> arguments
+    ) throws IOException {
+        broker.simulateLatency();
+        synchronized (broker) {
+            ensureOpen();
+            broker.declareQueue(this, queue, durable, exclusive, autoDelete);
+        }
+    }
+
+    @Override
+    public void queueDeclareNoWait(
+        @NonNull String queue,
+        boolean durable,
+        boolean exclusive,
+        boolean autoDelete,
+        @NonNull Map<String, Object> arguments
+    ) throws IOException {
+        queueDeclare(queue, durable, exclusive, autoDelete, arguments);
+    }
+
+    @Override
+    public void queueBind(
+        @NonNull String queue,
+        @NonNull String exchange,
+        @NonNull String routingKey,
+        @NonNull Map<String, Object> arguments
+    ) throws IOException {
+        broker.simulateLatency();
+        synchronized (broker) {
+            ensureOpen();
+            broker.bindQueue(this, queue, exchange, routingKey);
+        }
+    }
+
+    @Override
+    public void queueBindNoWait(
+        @NonNull String queue,
+        @NonNull String exchange,
+        @NonNull String routingKey,
+        @NonNull Map<String, Object> arguments
+    ) throws IOException {
+        queueBind(queue, exchange, routingKey, arguments);
+    }
+
+    @Override
+    public void basicQos(int prefetch) throws IOException {
+        broker.simulateLatency();
+        synchronized (broker) {
+            ensureOpen();
+            // Like RabbitMQ, the limit applies to each consumer that is started on this channel afterwards
+            this.prefetch = prefetch;
+        }
+    }
+
+    @Override
+    public void basicQos(int prefetch, boolean global) throws IOException {
+        if (!global) {
+            basicQos(prefetch);
+            return;
+        }
+        broker.simulateLatency();
+        synchronized (broker) {
+            ensureOpen();
+            // Like RabbitMQ, the limit is shared by all consumers of the channel, including the ones already started
+            globalPrefetch = prefetch;
+            new ArrayList<>(subscriptions.values()).forEach(subscription -> broker.dispatch(subscription.queue));
+        }
+    }
+
+    @Override
+    public void basicPublish(
+        @NonNull String exchange,
+        @NonNull String routingKey,
+        boolean mandatory,
+        AMQP.BasicProperties props,
+        byte[] body
+    ) throws IOException {
+        broker.simulateLatency();
+        broker.awaitUnblocked();
+        synchronized (broker) {
+            ensureOpen();
+            broker.publish(this, exchange, routingKey, props, body);
+            if (confirming) {
+                val seqNo = nextPublishSeqNo++;
+                worker.execute(() -> confirmListeners.forEach(listener -> {
+                    try {
+                        listener.handleAck(seqNo, false);
+                    } catch (Exception ex) {
+                        log.warn("Confirm listener failed", ex);
+                    }
+                }));
+            }
+        }
+    }
+
+    @Override
+    public void basicConsume(
+        @NonNull String queue,
+        @NonNull String consumerTag,
+        boolean noLocal,
+        boolean exclusive,
+        Map<String, Object> arguments,
+        Consumer callback
+    ) throws IOException {
+        broker.simulateLatency();
+        synchronized (broker) {
+            ensureOpen();
+            if (subscriptions.containsKey(consumerTag)) {
+                throw new IOException("Consumer tag " + consumerTag + " is already in use on this channel");
+            }
+            val subscription = broker.subscribe(this, queue, consumerTag, exclusive, prefetch, callback);
+            subscriptions.put(consumerTag, subscription);
+            worker.execute(() -> callback.handleConsumeOk(consumerTag));
+            broker.dispatch(subscription.queue);
+        }
+    }
+
+    @Override
+    public void basicAck(long deliveryTag) throws IOException {
+        basicAck(deliveryTag, false);
+    }
+
+    @Override
+    public void basicAck(long deliveryTag, boolean multiple) throws IOException {
+        broker.simulateLatency();
+        synchronized (broker) {
+            ensureOpen();
+            settle(deliveryTag, multiple);
+        }
+    }
+
+    @Override
+    public void basicNack(long deliveryTag) throws IOException {
+        broker.simulateLatency();
+        synchronized (broker) {
+            ensureOpen();
+            // Messages are not requeued, so the message is dropped
+            settle(deliveryTag, false);
+        }
+    }
+
+    @Override
+    public void basicCancel(@NonNull String consumerTag) throws IOException {
+        broker.simulateLatency();
+        synchronized (broker) {
+            ensureOpen();
+            val subscription = subscriptions.remove(consumerTag);
+            if (subscription == null) {
+                throw new IOException("Unknown consumerTag " + consumerTag);
+            }
+            broker.unsubscribe(subscription);
+            worker.execute(() -> subscription.consumer.handleCancelOk(consumerTag));
+        }
+    }
+
+    @Override
+    public void confirmSelect() throws IOException {
+        broker.simulateLatency();
+        synchronized (broker) {
+            ensureOpen();
+            confirming = true;
+        }
+    }
+
+    @Override
+    public long getNextPublishSeqNo() {
+        synchronized (broker) {
+            return confirming ? nextPublishSeqNo : 0;
+        }
+    }
+
+    @Override
+    public void addConfirmListener(@NonNull ConfirmListener listener) {
+        confirmListeners.add(listener);
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (broker) {
+            ensureOpen();
+            broker.closeChannel(this, InMemoryBroker.closedByApplication(false, this));
+        }
+    }
+
+    /**
+     * @return whether the limit on the whole channel allows another delivery. Must be called while holding the lock on
+     * the broker.
+     */
+    boolean hasCapacity() {
+        return globalPrefetch == 0 || unacked.size() < globalPrefetch;
+    }
+
+    /**
+     * Push a message to a consumer of this channel. Must be called while holding the lock on the broker.
+     */
+    void deliver(InMemoryBroker.Subscription subscription, InMemoryBroker.Message message) {
+        val deliveryTag = nextDeliveryTag++;
+        unacked.put(deliveryTag, new Unacked(subscription, message));
+        subscription.unacked++;
+
+        val envelope = new Envelope(deliveryTag, message.redelivered, message.exchange, message.routingKey);
+        worker.execute(() -> {
+            try {
+                subscription.consumer.handleDelivery(subscription.consumerTag, envelope, message.props, message.body);
+            } catch (Throwable ex) {
+                // Same as the strict exception handler of the RabbitMQ client, which is used by the AMQP backend
+                log.warn("Consumer {} threw an exception, closing channel", subscription.consumerTag, ex);
+                synchronized (broker) {
+                    if (closeReason == null) {
+                        broker.closeChannel(this, InMemoryBroker.closedByApplication(false, this));
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Close this channel because of the given signal. Unacked messages are requeued and consumers are notified. Must
+     * be called while holding the lock on the broker.
+     */
+    void shutdown(ShutdownSignalException signal) {
+        if (closeReason != null) {
+            return;
+        }
+        closeReason = signal;
+
+        val affected = new LinkedHashSet<InMemoryBroker.Queue>();
+        for (val entry : unacked.descendingMap().values()) {
+            broker.requeue(entry.subscription.queue, entry.message);
+            affected.add(entry.subscription.queue);
+        }
+        unacked.clear();
+
+        for (val subscription : new ArrayList<>(subscriptions.values())) {
+            broker.unsubscribe(subscription);
+            affected.add(subscription.queue);
+            worker.execute(() -> subscription.consumer.handleShutdownSignal(subscription.consumerTag, signal));
+        }
+        subscriptions.clear();
+        worker.shutdown();
+
+        affected.forEach(broker::dispatch);
+    }
+
+    private void settle(long deliveryTag, boolean multiple) throws IOException {
+        final List<Unacked> settled = new ArrayList<>();
+        if (multiple) {
+            val range = unacked.headMap(deliveryTag, true);
+            settled.addAll(range.values());
+            range.clear();
+        } else {
+            val entry = unacked.remove(deliveryTag);
+            if (entry == null) {
+                throw broker.channelError(
+                    this,
+                    InMemoryBroker.PRECONDITION_FAILED,
+                    "unknown delivery tag " + deliveryTag
+                );
+            }
+            settled.add(entry);
+        }
+
+        val affected = new LinkedHashSet<InMemoryBroker.Queue>();
+        for (val entry : settled) {
+            entry.subscription.unacked--;
+            affected.add(entry.subscription.queue);
+        }
+        affected.forEach(broker::dispatch);
+    }
+
+    private void ensureOpen() {
+        if (closeReason != null) {
+            throw new AlreadyClosedException(closeReason);
+        }
+    }
+
+    @RequiredArgsConstructor
+    private static class Unacked {
+        private final InMemoryBroker.Subscription subscription;
+        private final InMemoryBroker.Message message;
+    }
+}
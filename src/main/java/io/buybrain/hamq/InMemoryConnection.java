@@ -0,0 +1,63 @@
+package io.buybrain.hamq;
+
+import com.rabbitmq.client.AlreadyClosedException;
+import com.rabbitmq.client.BlockedListener;
+import com.rabbitmq.client.ShutdownSignalException;
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+import lombok.Setter;
+import lombok.val;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static io.buybrain.util.Result.trying;
+
+/**
+ * Connection to an {@link InMemoryBroker}. All state is guarded by the lock on the broker.
+ */
+@RequiredArgsConstructor
+class InMemoryConnection implements BackendConnection {
+    private final InMemoryBroker broker;
+    @Getter(AccessLevel.PACKAGE) private final Set<InMemoryChannel> channels = new HashSet<>();
+    @Setter(AccessLevel.PACKAGE) private ShutdownSignalException closeReason;
+    @Getter(AccessLevel.PACKAGE) private final List<BlockedListener> blockedListeners = new CopyOnWriteArrayList<>();
+
+    @Override
+    public BackendChannel newChannel() throws IOException {
+        broker.simulateLatency();
+        synchronized (broker) {
+            if (closeReason != null) {
+                throw new AlreadyClosedException(closeReason);
+            }
+            val channel = new InMemoryChannel(broker, this);
+            channels.add(channel);
+            return channel;
+        }
+    }
+
+    @Override
+    public void addBlockedListener(@NonNull BlockedListener listener) {
+        blockedListeners.add(listener);
+        // Like RabbitMQ, a connection that is made during an alarm hears about it right away
+        val reason = broker.getBlockedReason();
+        if (reason != null) {
+            trying(() -> listener.handleBlocked(reason));
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (broker) {
+            if (closeReason != null) {
+                throw new AlreadyClosedException(closeReason);
+            }
+            broker.closeConnection(this, InMemoryBroker.closedByApplication(true, null));
+        }
+    }
+}
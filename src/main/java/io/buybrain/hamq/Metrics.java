@@ -0,0 +1,73 @@
+package io.buybrain.hamq;
+
+/**
+ * Receiver of measurements taken by HAmq. Register an implementation with {@link Connection#setMetrics} to collect
+ * them, for instance {@link RecordingMetrics} or an adapter to a metrics library.
+ * <p>
+ * Methods are called on hot paths such as publishing and consuming, from many threads at once. Implementations must be
+ * thread safe and should not block or allocate. All methods do nothing by default.
+ */
+public interface Metrics {
+    /**
+     * Metrics implementation that ignores all measurements
+     */
+    Metrics NONE = new Metrics() {
+    };
+
+    /**
+     * A channel operation completed
+     *
+     * @param type     the type of operation
+     * @param attempts the number of attempts it took, 1 if it succeeded right away
+     * @param nanos    the total duration including retries, in nanoseconds
+     */
+    default void recordOperation(OperationType type, int attempts, long nanos) {
+    }
+
+    /**
+     * An operation failed and starts waiting before it is retried
+     *
+     * @param delayMillis the time it will wait, in milliseconds
+     */
+    default void recordBackoffStart(long delayMillis) {
+    }
+
+    /**
+     * An operation finished waiting and is about to be retried
+     */
+    default void recordBackoffEnd() {
+    }
+
+    /**
+     * A connection to the broker was established
+     *
+     * @param nanos the time it took to connect including retries, in nanoseconds
+     */
+    default void recordConnect(long nanos) {
+    }
+
+    /**
+     * A channel was reset and its state was restored
+     *
+     * @param nanos    the duration of the reset including reconnecting, in nanoseconds
+     * @param replayed the number of declarations, bindings, prefetch settings and consumers that were restored
+     */
+    default void recordReset(long nanos, int replayed) {
+    }
+
+    /**
+     * A consumer callback finished processing a delivery
+     *
+     * @param nanos the duration of the callback, in nanoseconds
+     */
+    default void recordCallback(long nanos) {
+    }
+
+    /**
+     * A delivery was acknowledged
+     *
+     * @param nanos the time between receiving the delivery and acknowledging it, in nanoseconds
+     */
+    default void recordAck(long nanos) {
+    }
+}
@@ -0,0 +1,90 @@
+package io.buybrain.hamq;
+
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+import lombok.val;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Ranks the nodes of a broker cluster for connecting. Nodes that were reachable the last time are tried first, ordered
+ * by their average connect time, so connections go to the fastest healthy node. Nodes that were never connected to
+ * follow in the configured order, and nodes that failed are tried last, the one that failed longest ago first. Since
+ * all nodes are tried in a single connect attempt, losing a node fails over to the next one right away instead of
+ * waiting for a retry.
+ */
+class NodeSelector {
+    // Weight of a new connect time in the moving average
+    private static final double SMOOTHING = 0.3;
+
+    private final List<Node> nodes = new ArrayList<>();
+    private long failures;
+
+    NodeSelector(@NonNull List<BrokerAddress> addresses) {
+        if (addresses.isEmpty()) {
+            throw new IllegalArgumentException("At least one broker address is required");
+        }
+        for (int i = 0; i < addresses.size(); i++) {
+            nodes.add(new Node(addresses.get(i), i));
+        }
+    }
+
+    /**
+     * @return all nodes, in the order in which they should be tried
+     */
+    synchronized List<BrokerAddress> ranked() {
+        return nodes.stream()
+            .sorted(
+                Comparator.<Node>comparingLong(node -> node.failedAt)
+                    .thenComparingDouble(node -> node.connectNanos == 0 ? Double.MAX_VALUE : node.connectNanos)
+                    .thenComparingInt(node -> node.index)
+            )
+            .map(node -> node.address)
+            .collect(toList());
+    }
+
+    /**
+     * Record a successful connect, which makes the node healthy again
+     *
+     * @param address the node that was connected to
+     * @param nanos   the time it took to connect
+     */
+    synchronized void recordSuccess(@NonNull BrokerAddress address, long nanos) {
+        val node = find(address);
+        node.failedAt = 0;
+        node.connectNanos = node.connectNanos == 0 ? nanos : SMOOTHING * nanos + (1 - SMOOTHING) * node.connectNanos;
+    }
+
+    /**
+     * Record that connecting to a node failed, or that the connection to it was lost
+     *
+     * @param address the node that failed
+     */
+    synchronized void recordFailure(@NonNull BrokerAddress address) {
+        find(address).failedAt = ++failures;
+    }
+
+    private Node find(BrokerAddress address) {
+        for (val node : nodes) {
+            if (node.address.equals(address)) {
+                return node;
+            }
+        }
+        throw new IllegalArgumentException("Unknown broker address " + address);
+    }
+
+    @RequiredArgsConstructor
+    private static class Node {
+        final BrokerAddress address;
+        // Position in the configuration, to keep the configured order among nodes that are otherwise equal
+        final int index;
+        // Moving average of the connect time, or 0 when the node was never connected to
+        double connectNanos;
+        // Sequence number of the last failure, or 0 when the node is healthy
+        long failedAt;
+    }
+}
@@ -4,12 +4,16 @@ import lombok.AllArgsConstructor;
 import lombok.Getter;
 import lombok.NonNull;
 
+import java.time.Duration;
+
 /**
- * Base class for all operation specifications, supporting optionally overriding the retry policy per operation.
+ * Base class for all operation specifications, supporting optionally overriding the retry policy per operation and
+ * limiting the time an operation may take.
  */
 @AllArgsConstructor
 public class OperationSpec<T extends OperationSpec> {
     @Getter private RetryPolicy retryPolicy;
+    @Getter private Duration timeout;
 
     OperationSpec() {
     }
@@ -18,4 +22,16 @@ public class OperationSpec<T extends OperationSpec> {
         this.retryPolicy = policy;
         return (T) this;
     }
+
+    /**
+     * Limit the time the operation may take, including retries, backoff and waiting for the connection and channel to
+     * be established. Once it passes, the operation fails with an {@link OperationTimeoutException}.
+     *
+     * @param timeout the maximum duration of the operation
+     * @return this specification
+     */
+    public T withTimeout(@NonNull Duration timeout) {
+        this.timeout = timeout;
+        return (T) this;
+    }
 }
@@ -0,0 +1,11 @@
+package io.buybrain.hamq;
+
+/**
+ * Thrown when an operation didn't succeed before its deadline, see {@link OperationSpec#withTimeout}. The cause is the
+ * error of the last attempt, if there was one.
+ */
+public class OperationTimeoutException extends RuntimeException {
+    public OperationTimeoutException(Throwable cause) {
+        super("Operation did not succeed before its deadline", cause);
+    }
+}
@@ -0,0 +1,45 @@
+package io.buybrain.hamq;
+
+/**
+ * Types of channel operations, used for reporting {@link Metrics}
+ */
+public enum OperationType {
+    EXCHANGE_DECLARE,
+    QUEUE_DECLARE,
+    QUEUE_BIND,
+    PREFETCH,
+    CONFIRM_SELECT,
+    PUBLISH,
+    CONSUME,
+    TOPOLOGY_RESTORE,
+    OTHER;
+
+    /**
+     * @param spec an operation specification
+     * @return the type of operation the specification belongs to
+     */
+    static OperationType of(OperationSpec spec) {
+        if (spec instanceof PublishSpec) {
+            return PUBLISH;
+        }
+        if (spec instanceof ConsumeSpec) {
+            return CONSUME;
+        }
+        if (spec instanceof QueueSpec) {
+            return QUEUE_DECLARE;
+        }
+        if (spec instanceof ExchangeSpec) {
+            return EXCHANGE_DECLARE;
+        }
+        if (spec instanceof BindSpec) {
+            return QUEUE_BIND;
+        }
+        if (spec instanceof PrefetchSpec) {
+            return PREFETCH;
+        }
+        if (spec instanceof ConfirmSpec) {
+            return CONFIRM_SELECT;
+        }
+        return OTHER;
+    }
+}
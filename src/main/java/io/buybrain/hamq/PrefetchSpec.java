@@ -2,9 +2,12 @@ package io.buybrain.hamq;
 
 import lombok.AllArgsConstructor;
 import lombok.EqualsAndHashCode;
+import lombok.NonNull;
 import lombok.Value;
 import lombok.experimental.Wither;
 
+import java.time.Duration;
+
 /**
  * Specification for configuring prefetching as used by {@link Channel#prefetch}.
  */
@@ -13,5 +16,61 @@ import lombok.experimental.Wither;
 @Wither
 @AllArgsConstructor
 public class PrefetchSpec extends OperationSpec<PrefetchSpec> {
+    /**
+     * The prefetch amount, or the initial amount when prefetching is adaptive
+     */
     int amount;
+    /**
+     * Lower and upper bound for adaptive prefetching. Prefetching is fixed when the upper bound is 0.
+     */
+    int minAmount;
+    int maxAmount;
+    /**
+     * Number of deliveries that may wait for each worker before adaptive prefetching lowers the amount
+     */
+    double targetQueuedPerWorker;
+    /**
+     * Time between adjustments of an adaptive prefetch amount
+     */
+    @NonNull Duration adjustInterval;
+    /**
+     * Maximum total size in bytes of the bodies of deliveries that were received and not acked or nacked yet. Once
+     * exceeded, the broker holds back deliveries on the channel until enough of them are settled. No limit when 0.
+     */
+    long maxBytes;
+
+    /**
+     * @param amount the maximum number of messages that may be prefetched
+     */
+    public PrefetchSpec(int amount) {
+        this.amount = amount;
+        minAmount = 0;
+        maxAmount = 0;
+        targetQueuedPerWorker = 1;
+        adjustInterval = Duration.ofSeconds(5);
+        maxBytes = 0;
+    }
+
+    /**
+     * Adapt the prefetch amount to the observed consumer throughput within the given bounds. The amount is lowered when
+     * deliveries wait longer than {@link #targetQueuedPerWorker} processing times before they are handled, and raised
+     * when consumers keep the whole prefetch window busy without deliveries waiting.
+     *
+     * @param minAmount the lowest prefetch amount to use
+     * @param maxAmount the highest prefetch amount to use
+     * @return the new specification
+     */
+    public PrefetchSpec withAdaptiveBounds(int minAmount, int maxAmount) {
+        if (minAmount < 1 || maxAmount < minAmount) {
+            throw new IllegalArgumentException("Invalid adaptive prefetch bounds " + minAmount + ".." + maxAmount);
+        }
+        return withMinAmount(minAmount).withMaxAmount(maxAmount);
+    }
+
+    /**
+     * @return whether the prefetch amount is adjusted to the observed consumer throughput
+     */
+    public boolean isAdaptive() {
+        return maxAmount > 0;
+    }
 }
@@ -1,5 +1,6 @@
 package io.buybrain.hamq;
 
+import com.rabbitmq.client.AMQP;
 import lombok.*;
 import lombok.experimental.Wither;
 
@@ -22,6 +23,10 @@ public class PublishSpec extends OperationSpec<PublishSpec> {
     boolean mandatory;
     boolean durable;
     byte[] body;
+    /**
+     * Application provided identifier of the message, or null to leave it empty
+     */
+    String messageId;
 
     /**
      * @param exchange   the exchange to publish to
@@ -35,6 +40,7 @@ public class PublishSpec extends OperationSpec<PublishSpec> {
         durable = true;
         this.body = body;
         this.headers = emptyMap();
+        messageId = null;
     }
 
     public PublishSpec withHeader(@NonNull String key, @NonNull Object value) {
@@ -43,6 +49,23 @@ public class PublishSpec extends OperationSpec<PublishSpec> {
         return withHeaders(newHeaders);
     }
 
+    /**
+     * @return the AMQP properties to publish this message with
+     */
+    AMQP.BasicProperties toProperties() {
+        val propBuilder = new AMQP.BasicProperties.Builder()
+            .deliveryMode(durable ? 2 : 1);
+
+        if (!headers.isEmpty()) {
+            propBuilder.headers(headers);
+        }
+        if (messageId != null) {
+            propBuilder.messageId(messageId);
+        }
+
+        return propBuilder.build();
+    }
+
     /**
      * Static factory shorthand for publishing directly to a queue
      *
@@ -0,0 +1,314 @@
+package io.buybrain.hamq;
+
+import com.rabbitmq.client.impl.ValueReader;
+import com.rabbitmq.client.impl.ValueWriter;
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Append-only journal of messages that still have to be published, stored in memory-mapped segment files. Publishing
+ * threads append messages and return immediately, while a single drainer takes them out in order and completes them
+ * once the broker has them. Segments of which all messages are completed are deleted, and pending messages in
+ * existing segments are replayed when the spool is opened again.
+ * <p>
+ * Every record consists of a 4 byte length, a 1 byte state and the serialized message. The length is written last, so
+ * records that were only partially written when the process died are never replayed.
+ */
+@Slf4j
+class PublishSpool implements Closeable {
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final int HEADER_BYTES = 5;
+    private static final byte PENDING = 0;
+    private static final byte DONE = 1;
+
+    private final SpoolSpec spec;
+    private final Deque<Segment> segments = new ArrayDeque<>();
+    private final Deque<Entry> pending = new ArrayDeque<>();
+    private long nextSegmentId;
+    private boolean closed;
+
+    PublishSpool(@NonNull SpoolSpec spec) throws IOException {
+        this.spec = spec;
+        Files.createDirectories(spec.getDirectory());
+        replay();
+    }
+
+    /**
+     * Append a message to the spool
+     *
+     * @param message the message to append
+     * @return false if the message is too large to ever fit in a segment and should be published directly instead
+     * @throws SpoolFullException when the spool is full and the overflow policy is {@link SpoolOverflowPolicy#FAIL}
+     */
+    synchronized boolean append(@NonNull PublishSpec message) throws IOException, InterruptedException {
+        val data = serialize(message);
+        val recordBytes = HEADER_BYTES + data.length;
+        if (recordBytes > spec.getSegmentBytes()) {
+            return false;
+        }
+
+        Segment segment = segments.peekLast();
+        if (segment == null || segment.remaining() < recordBytes) {
+            if (segment != null && segment.pending == 0) {
+                // The current segment is full and everything in it was already published
+                segments.remove(segment);
+                segment.delete();
+            }
+            while (!hasRoomForSegment()) {
+                switch (spec.getOverflowPolicy()) {
+                    case FAIL:
+                        throw new SpoolFullException("Publish spool in " + spec.getDirectory() + " is full");
+                    case DROP:
+                        log.warn("Publish spool in {} is full, dropping message", spec.getDirectory());
+                        return true;
+                    default:
+                        wait();
+                }
+            }
+            segment = openSegment(nextSegmentId++);
+            segments.addLast(segment);
+        }
+
+        val position = segment.writePosition;
+        val buffer = segment.buffer;
+        buffer.put(position + 4, PENDING);
+        val payload = buffer.duplicate();
+        payload.position(position + HEADER_BYTES);
+        payload.put(data);
+        buffer.putInt(position, data.length);
+        segment.writePosition += recordBytes;
+        segment.pending++;
+
+        pending.addLast(new Entry(segment, position));
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Take the next message that has to be published, waiting for one to be appended if necessary. The message stays
+     * in the spool until it is completed.
+     *
+     * @return the next entry
+     * @throws InterruptedException when the spool was closed
+     */
+    synchronized Entry take() throws InterruptedException {
+        while (!closed && pending.isEmpty()) {
+            wait();
+        }
+        if (closed) {
+            // Messages that are still pending stay on disk for the next spool on the same directory
+            throw new InterruptedException("Publish spool was closed");
+        }
+        return pending.pollFirst();
+    }
+
+    /**
+     * Put a message that could not be published back in front of the queue, so that it is taken again. It stays pending
+     * on disk in the meantime, so when the spool was already closed, it is replayed once the spool is opened again.
+     *
+     * @param entry the entry that failed
+     */
+    synchronized void retry(@NonNull Entry entry) {
+        if (closed) {
+            return;
+        }
+        pending.addFirst(entry);
+        notifyAll();
+    }
+
+    /**
+     * Mark a message as published so it will not be replayed again. Ignored when the spool was already closed, in which
+     * case the message is replayed once the spool is opened again.
+     *
+     * @param entry the published entry
+     */
+    synchronized void complete(@NonNull Entry entry) throws IOException {
+        if (closed) {
+            return;
+        }
+        val segment = entry.segment;
+        segment.buffer.put(entry.position + 4, DONE);
+        segment.pending--;
+        if (segment.pending == 0 && segment != segments.peekLast()) {
+            segments.remove(segment);
+            segment.delete();
+            notifyAll();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        closed = true;
+        for (val segment : segments) {
+            segment.buffer.force();
+            segment.file.close();
+        }
+        notifyAll();
+    }
+
+    private boolean hasRoomForSegment() {
+        return (segments.size() + 1L) * spec.getSegmentBytes() <= spec.getMaxBytes();
+    }
+
+    private void replay() throws IOException {
+        final List<Path> paths;
+        try (Stream<Path> files = Files.list(spec.getDirectory())) {
+            paths = files
+                .filter(path -> path.getFileName().toString().endsWith(SEGMENT_SUFFIX))
+                .sorted()
+                .collect(Collectors.toList());
+        }
+
+        for (val path : paths) {
+            val name = path.getFileName().toString();
+            val id = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+            nextSegmentId = Math.max(nextSegmentId, id + 1);
+
+            val segment = openSegment(id);
+            val buffer = segment.buffer;
+            int position = 0;
+            while (position + HEADER_BYTES <= buffer.capacity()) {
+                val length = buffer.getInt(position);
+                if (length <= 0 || position + HEADER_BYTES + length > buffer.capacity()) {
+                    break;
+                }
+                if (buffer.get(position + 4) == PENDING) {
+                    pending.addLast(new Entry(segment, position));
+                    segment.pending++;
+                }
+                position += HEADER_BYTES + length;
+            }
+            segment.writePosition = position;
+            segments.addLast(segment);
+        }
+
+        // Remove fully published segments, except for the last one which can still be appended to
+        for (val segment : new ArrayList<>(segments)) {
+            if (segment.pending == 0 && segment != segments.peekLast()) {
+                segments.remove(segment);
+                segment.delete();
+            }
+        }
+
+        if (!pending.isEmpty()) {
+            log.info("Replaying {} spooled messages from {}", pending.size(), spec.getDirectory());
+        }
+    }
+
+    private Segment openSegment(long id) throws IOException {
+        val path = spec.getDirectory().resolve(String.format("%020d%s", id, SEGMENT_SUFFIX));
+        val file = FileChannel.open(path, CREATE, READ, WRITE);
+        val size = Math.max(file.size(), spec.getSegmentBytes());
+        return new Segment(path, file, file.map(FileChannel.MapMode.READ_WRITE, 0, size));
+    }
+
+    static byte[] serialize(@NonNull PublishSpec message) throws IOException {
+        val bytes = new ByteArrayOutputStream();
+        val out = new DataOutputStream(bytes);
+        out.writeUTF(message.getExchange());
+        out.writeUTF(message.getRoutingKey());
+        out.writeBoolean(message.isMandatory());
+        out.writeBoolean(message.isDurable());
+        new ValueWriter(out).writeTable(message.getHeaders());
+        if (message.getBody() == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(message.getBody().length);
+            out.write(message.getBody());
+        }
+        // Written last, so messages that were spooled before message ids were supported can still be read
+        out.writeBoolean(message.getMessageId() != null);
+        if (message.getMessageId() != null) {
+            out.writeUTF(message.getMessageId());
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    static PublishSpec deserialize(@NonNull byte[] data) throws IOException {
+        val in = new DataInputStream(new ByteArrayInputStream(data));
+        val exchange = in.readUTF();
+        val routingKey = in.readUTF();
+        val mandatory = in.readBoolean();
+        val durable = in.readBoolean();
+        val headers = new ValueReader(in).readTable();
+        val bodyLength = in.readInt();
+        byte[] body = null;
+        if (bodyLength >= 0) {
+            body = new byte[bodyLength];
+            in.readFully(body);
+        }
+        val messageId = in.available() > 0 && in.readBoolean() ? in.readUTF() : null;
+        return new PublishSpec(exchange, routingKey, body)
+            .withMandatory(mandatory)
+            .withDurable(durable)
+            .withHeaders(headers)
+            .withMessageId(messageId);
+    }
+
+    /**
+     * A spooled message that still has to be published
+     */
+    @RequiredArgsConstructor
+    static class Entry {
+        private final Segment segment;
+        private final int position;
+
+        /**
+         * @return the spooled message
+         */
+        PublishSpec getMessage() throws IOException {
+            val buffer = segment.buffer.duplicate();
+            val data = new byte[buffer.getInt(position)];
+            buffer.position(position + HEADER_BYTES);
+            buffer.get(data);
+            return deserialize(data);
+        }
+    }
+
+    private static class Segment {
+        private final Path path;
+        private final FileChannel file;
+        private final MappedByteBuffer buffer;
+        private int writePosition;
+        private int pending;
+
+        Segment(Path path, FileChannel file, MappedByteBuffer buffer) {
+            this.path = path;
+            this.file = file;
+            this.buffer = buffer;
+        }
+
+        int remaining() {
+            return buffer.capacity() - writePosition;
+        }
+
+        void delete() throws IOException {
+            file.close();
+            Files.deleteIfExists(path);
+        }
+    }
+}
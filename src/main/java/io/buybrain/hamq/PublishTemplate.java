@@ -0,0 +1,43 @@
+package io.buybrain.hamq;
+
+import com.rabbitmq.client.AMQP;
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.NonNull;
+
+/**
+ * Reusable settings for publishing many messages with the same exchange, routing key, durability and headers, as used
+ * by {@link Channel#publish(PublishTemplate, byte[])}. The AMQP properties are built once when the template is
+ * created, so that publishing with a template doesn't allocate anything besides what the client library needs.
+ */
+public class PublishTemplate {
+    @Getter private final PublishSpec spec;
+    @Getter(AccessLevel.PACKAGE) private final AMQP.BasicProperties properties;
+
+    /**
+     * @param spec the publish specification to take all settings from. Its body is ignored.
+     */
+    public PublishTemplate(@NonNull PublishSpec spec) {
+        this.spec = spec;
+        properties = spec.toProperties();
+    }
+
+    /**
+     * Create a publish specification for a single message, for publishing paths that don't support templates
+     *
+     * @param routingKey the routing key
+     * @param body       the message body
+     * @return the specification
+     */
+    PublishSpec toSpec(@NonNull String routingKey, byte[] body) {
+        PublishSpec message = spec.withRoutingKey(routingKey).withBody(body);
+        // Withers don't carry over the retry policy and timeout of the original specification
+        if (spec.getRetryPolicy() != null) {
+            message = message.withRetryPolicy(spec.getRetryPolicy());
+        }
+        if (spec.getTimeout() != null) {
+            message = message.withTimeout(spec.getTimeout());
+        }
+        return message;
+    }
+}
@@ -0,0 +1,182 @@
+package io.buybrain.hamq;
+
+import com.rabbitmq.client.AMQP;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+import lombok.SneakyThrows;
+import lombok.val;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Bookkeeping for publisher confirms. Messages that are published on a confirming channel are kept in flight, ordered
+ * by their publish sequence number, until the broker acknowledges them. When the channel is lost, the messages that
+ * were never confirmed can be detached and published again on the next channel.
+ */
+class PublisherConfirms {
+    private final NavigableMap<Long, Confirmation> inFlight = new TreeMap<>();
+    private final Set<Confirmation> outstanding = Collections.newSetFromMap(new IdentityHashMap<>());
+    private BackendChannel channel;
+
+    /**
+     * @param chan a backend channel
+     * @return whether confirms are currently being tracked for the given channel
+     */
+    synchronized boolean isAttachedTo(BackendChannel chan) {
+        return channel != null && channel == chan;
+    }
+
+    /**
+     * Start tracking confirms for a new backend channel. Confirm mode must already be enabled on the channel.
+     *
+     * @param chan the new channel
+     * @return the messages that were published on the previous channel but never confirmed, in publishing order, when
+     * that channel was not detached. They have to be published again.
+     */
+    synchronized List<Confirmation> attach(@NonNull BackendChannel chan) {
+        val unconfirmed = takeAll();
+        channel = chan;
+        return unconfirmed;
+    }
+
+    /**
+     * Stop tracking confirms for the given backend channel, for instance because it was closed. When another channel
+     * was attached in the meantime, that one already took over the unconfirmed messages and nothing changes.
+     *
+     * @param chan the channel that is no longer used
+     * @return all messages that were published on the channel but never confirmed, in publishing order
+     */
+    synchronized List<Confirmation> detach(@NonNull BackendChannel chan) {
+        if (channel != chan) {
+            return Collections.emptyList();
+        }
+        return takeAll();
+    }
+
+    private List<Confirmation> takeAll() {
+        val unconfirmed = new ArrayList<Confirmation>(inFlight.values());
+        inFlight.clear();
+        channel = null;
+        return unconfirmed;
+    }
+
+    /**
+     * Publish a message on the given channel and start tracking its confirmation
+     *
+     * @throws ChannelReplacedException when the given channel is not the one that is currently tracked, so that the
+     *                                  caller retries on the current channel
+     */
+    synchronized void publish(
+        @NonNull BackendChannel chan,
+        @NonNull Confirmation confirmation,
+        @NonNull AMQP.BasicProperties props
+    ) throws IOException {
+        if (channel != chan) {
+            throw new ChannelReplacedException();
+        }
+        outstanding.add(confirmation);
+        val spec = confirmation.getSpec();
+        val seqNo = chan.getNextPublishSeqNo();
+        inFlight.put(seqNo, confirmation);
+        try {
+            chan.basicPublish(spec.getExchange(), spec.getRoutingKey(), spec.isMandatory(), props, spec.getBody());
+        } catch (IOException | RuntimeException ex) {
+            // The publish will be retried by the caller, so it should not be republished after a reset as well
+            inFlight.remove(seqNo);
+            throw ex;
+        }
+    }
+
+    /**
+     * Handle a positive acknowledgement from the broker
+     *
+     * @param chan     the channel on which the acknowledgement was received
+     * @param seqNo    the acknowledged sequence number
+     * @param multiple whether all sequence numbers up to and including seqNo are acknowledged
+     */
+    void ack(@NonNull BackendChannel chan, long seqNo, boolean multiple) {
+        val confirmed = take(chan, seqNo, multiple);
+        synchronized (this) {
+            confirmed.forEach(outstanding::remove);
+        }
+        confirmed.forEach(confirmation -> confirmation.getFuture().complete(null));
+    }
+
+    /**
+     * Handle a negative acknowledgement from the broker
+     *
+     * @param chan     the channel on which the acknowledgement was received
+     * @param seqNo    the negatively acknowledged sequence number
+     * @param multiple whether all sequence numbers up to and including seqNo are negatively acknowledged
+     * @return the messages that were negatively acknowledged, in publishing order. They remain outstanding until they
+     * are either published again or marked as failed.
+     */
+    List<Confirmation> nack(@NonNull BackendChannel chan, long seqNo, boolean multiple) {
+        return take(chan, seqNo, multiple);
+    }
+
+    /**
+     * Mark a message as finally failed. It will no longer be waited for.
+     *
+     * @param confirmation the failed message
+     * @param cause        the reason of failure
+     */
+    synchronized void fail(@NonNull Confirmation confirmation, @NonNull Throwable cause) {
+        outstanding.remove(confirmation);
+        confirmation.getFuture().completeExceptionally(cause);
+    }
+
+    /**
+     * Wait until all messages that were published so far are confirmed, including the ones that will be published
+     * again after a reset.
+     */
+    @SneakyThrows
+    void awaitAll() {
+        final CompletableFuture[] futures;
+        synchronized (this) {
+            futures = outstanding.stream().map(Confirmation::getFuture).toArray(CompletableFuture[]::new);
+        }
+        try {
+            CompletableFuture.allOf(futures).get();
+        } catch (ExecutionException ex) {
+            throw ex.getCause();
+        }
+    }
+
+    private synchronized List<Confirmation> take(BackendChannel chan, long seqNo, boolean multiple) {
+        if (channel != chan) {
+            // Late confirm for a channel that was already detached or replaced. Its unconfirmed messages were handed
+            // out by detach or attach to be published again, so they are no longer tracked here.
+            return Collections.emptyList();
+        }
+        final List<Confirmation> taken;
+        if (multiple) {
+            val confirmed = inFlight.headMap(seqNo, true);
+            taken = new ArrayList<>(confirmed.values());
+            confirmed.clear();
+        } else {
+            val confirmation = inFlight.remove(seqNo);
+            taken = confirmation == null ? Collections.emptyList() : Collections.singletonList(confirmation);
+        }
+        return taken;
+    }
+
+    /**
+     * A published message that awaits confirmation by the broker
+     */
+    @RequiredArgsConstructor
+    static class Confirmation {
+        @Getter @NonNull private final PublishSpec spec;
+        @Getter private final CompletableFuture<Void> future = new CompletableFuture<>();
+    }
+}
@@ -0,0 +1,191 @@
+package io.buybrain.hamq;
+
+import com.rabbitmq.client.ShutdownSignalException;
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+import lombok.val;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static io.buybrain.util.Result.trying;
+
+/**
+ * Pool of backend channels for publishing from many threads at once. AMQP channels can not be used for publishing
+ * concurrently, so every slot of the pool guards its own channel with a lock. Threads are striped over the slots by
+ * their id, so a publishing thread keeps using the same channel and only contends with the threads sharing its slot.
+ * <p>
+ * The slots are spread over the physical connections of the {@link Connection}. Channels are opened lazily and are
+ * replaced as soon as the connection they were opened on is no longer the active one, so the pool recovers by itself
+ * after {@link ConnectionSlot#reset(BackendConnection)}.
+ */
+class PublisherPool {
+    private final Connection connection;
+    private final Retryer retryer;
+    private final Slot[] slots;
+
+    PublisherPool(
+        @NonNull Connection connection,
+        @NonNull List<ConnectionSlot> connectionSlots,
+        @NonNull Retryer retryer,
+        int size
+    ) {
+        if (size < 1) {
+            throw new IllegalArgumentException("Publisher pool size must be at least 1, got " + size);
+        }
+        this.connection = connection;
+        this.retryer = retryer;
+        slots = new Slot[size];
+        for (int i = 0; i < size; i++) {
+            slots[i] = new Slot(connectionSlots.get(i % connectionSlots.size()));
+        }
+    }
+
+    /**
+     * Publish a message on the channel of the slot that belongs to the calling thread
+     *
+     * @param spec the publish specification
+     */
+    void publish(@NonNull PublishSpec spec) {
+        val slot = slots[(int) (Thread.currentThread().getId() % slots.length)];
+        retryer.withTimeout(spec.getTimeout(), () -> {
+            publishOn(slot, spec);
+            return null;
+        });
+    }
+
+    private void publishOn(Slot slot, PublishSpec spec) {
+        slot.connectionSlot.awaitPublishable();
+        val props = spec.toProperties();
+        val policy = spec.getRetryPolicy() != null ? spec.getRetryPolicy() : connection.getRetryPolicy();
+
+        val start = System.nanoTime();
+        // Channel the last attempt ran on. The lock is only held during attempts, not while backing off between them.
+        val attempt = new AtomicReference<BackendChannel>();
+        val attempts = retryer.performWithRetry(
+            () -> {
+                retryer.lock(slot.lock);
+                try {
+                    val chan = slot.activeChannel();
+                    attempt.set(chan);
+                    chan.basicPublish(
+                        spec.getExchange(),
+                        spec.getRoutingKey(),
+                        spec.isMandatory(),
+                        props,
+                        spec.getBody()
+                    );
+                } finally {
+                    slot.lock.unlock();
+                }
+            },
+            policy.withErrorHandler(ex -> slot.handleError(attempt.get(), ex))
+        );
+        retryer.getMetrics().recordOperation(OperationType.PUBLISH, attempts, System.nanoTime() - start);
+    }
+
+    /**
+     * Publish a message using a template. When the slot has an open channel, the first attempt is made directly on it,
+     * without allocating anything. Otherwise, or if it fails, the message is published like
+     * {@link #publish(PublishSpec)} would, which connects within the deadline of the message.
+     *
+     * @param template   the template with the settings for the message
+     * @param routingKey the routing key for this message
+     * @param body       the message body
+     */
+    void publish(@NonNull PublishTemplate template, @NonNull String routingKey, byte[] body) {
+        val slot = slots[(int) (Thread.currentThread().getId() % slots.length)];
+        // While the connection is blocked, leave it to the regular path to apply the blocked publish policy
+        if (slot.connectionSlot.isBlocked() || !tryPublish(slot, template, routingKey, body)) {
+            publish(template.toSpec(routingKey, body));
+        }
+    }
+
+    /**
+     * Make a single attempt to publish a message on the channel of the slot
+     *
+     * @return whether the message was published, or false when the slot has no open channel or publishing failed
+     */
+    private boolean tryPublish(Slot slot, PublishTemplate template, String routingKey, byte[] body) {
+        val spec = template.getSpec();
+        val start = System.nanoTime();
+        BackendChannel chan = null;
+        slot.lock.lock();
+        try {
+            chan = slot.openChannel();
+            if (chan == null) {
+                // Opening a channel may have to connect, which is left to the path that applies the deadline
+                return false;
+            }
+            chan.basicPublish(spec.getExchange(), routingKey, spec.isMandatory(), template.getProperties(), body);
+        } catch (IOException | ShutdownSignalException ex) {
+            // Failures that publishing with retries recovers from
+            slot.handleError(chan, ex);
+            return false;
+        } finally {
+            slot.lock.unlock();
+        }
+        retryer.getMetrics().recordOperation(OperationType.PUBLISH, 1, System.nanoTime() - start);
+        return true;
+    }
+
+    @RequiredArgsConstructor
+    private static class Slot {
+        private final ConnectionSlot connectionSlot;
+        private final ReentrantLock lock = new ReentrantLock();
+        private BackendConnection owner;
+        private BackendChannel channel;
+
+        BackendChannel activeChannel() throws IOException {
+            val conn = connectionSlot.activeConnection();
+            if (channel == null || owner != conn) {
+                discardChannel();
+                channel = conn.newChannel();
+                owner = conn;
+            }
+            return channel;
+        }
+
+        /**
+         * @return the channel of this slot if it is open on the active connection, or null. Never connects.
+         */
+        BackendChannel openChannel() {
+            val conn = connectionSlot.currentConnection();
+            return conn != null && owner == conn ? channel : null;
+        }
+
+        /**
+         * @param failedChannel the channel the failed attempt ran on, or null if it didn't get that far
+         */
+        void handleError(BackendChannel failedChannel, Throwable ex) {
+            if (failedChannel == null || !Retryer.shouldReconnectToRecover(ex)) {
+                return;
+            }
+            lock.lock();
+            try {
+                if (channel != failedChannel) {
+                    // Another thread already replaced the channel
+                    return;
+                }
+                val failed = owner;
+                discardChannel();
+                if (Retryer.isNetworkError(ex)) {
+                    // Only a broken connection needs to be replaced, a closed channel is simply opened again
+                    connectionSlot.reset(failed);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void discardChannel() {
+            if (channel != null) {
+                trying(channel::close);
+            }
+            channel = null;
+            owner = null;
+        }
+    }
+}
@@ -12,7 +12,7 @@ import static java.util.Collections.emptyMap;
  * Specification for declaring queues as used by {@link Channel#queueDeclare}.
  */
 @Value
-@EqualsAndHashCode(callSuper = true)
+@EqualsAndHashCode(callSuper = false)
 @Wither
 @AllArgsConstructor
 public class QueueSpec extends OperationSpec<QueueSpec> {
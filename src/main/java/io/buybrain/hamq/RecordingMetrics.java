@@ -0,0 +1,100 @@
+package io.buybrain.hamq;
+
+import lombok.Getter;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * {@link Metrics} implementation that keeps counters and histograms in memory, for exposing them to a monitoring system
+ * or inspecting them in tests. All histograms of durations are in nanoseconds, except for the backoff histogram which
+ * is in milliseconds.
+ */
+public class RecordingMetrics implements Metrics {
+    private final Map<OperationType, Histogram> operationLatency = new EnumMap<>(OperationType.class);
+    private final Map<OperationType, LongAdder> operationAttempts = new EnumMap<>(OperationType.class);
+    @Getter private final Histogram backoff = new Histogram();
+    private final LongAdder inBackoff = new LongAdder();
+    @Getter private final Histogram connectLatency = new Histogram();
+    @Getter private final Histogram resetLatency = new Histogram();
+    private final LongAdder replayed = new LongAdder();
+    @Getter private final Histogram callbackLatency = new Histogram();
+    @Getter private final Histogram ackLatency = new Histogram();
+
+    public RecordingMetrics() {
+        // Everything is allocated up front so recording never has to
+        for (OperationType type : OperationType.values()) {
+            operationLatency.put(type, new Histogram());
+            operationAttempts.put(type, new LongAdder());
+        }
+    }
+
+    @Override
+    public void recordOperation(OperationType type, int attempts, long nanos) {
+        operationLatency.get(type).record(nanos);
+        operationAttempts.get(type).add(attempts);
+    }
+
+    @Override
+    public void recordBackoffStart(long delayMillis) {
+        backoff.record(delayMillis);
+        inBackoff.increment();
+    }
+
+    @Override
+    public void recordBackoffEnd() {
+        inBackoff.decrement();
+    }
+
+    @Override
+    public void recordConnect(long nanos) {
+        connectLatency.record(nanos);
+    }
+
+    @Override
+    public void recordReset(long nanos, int replayed) {
+        resetLatency.record(nanos);
+        this.replayed.add(replayed);
+    }
+
+    @Override
+    public void recordCallback(long nanos) {
+        callbackLatency.record(nanos);
+    }
+
+    @Override
+    public void recordAck(long nanos) {
+        ackLatency.record(nanos);
+    }
+
+    /**
+     * @param type the type of operation
+     * @return the latencies of completed operations of the given type, including retries
+     */
+    public Histogram getOperationLatency(OperationType type) {
+        return operationLatency.get(type);
+    }
+
+    /**
+     * @param type the type of operation
+     * @return the total number of attempts for completed operations of the given type
+     */
+    public long getOperationAttempts(OperationType type) {
+        return operationAttempts.get(type).sum();
+    }
+
+    /**
+     * @return the number of operations that are currently waiting to be retried
+     */
+    public long getOperationsInBackoff() {
+        return inBackoff.sum();
+    }
+
+    /**
+     * @return the total number of declarations, bindings, prefetch settings and consumers restored by resets
+     */
+    public long getReplayed() {
+        return replayed.sum();
+    }
+}
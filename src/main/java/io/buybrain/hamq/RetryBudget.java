@@ -0,0 +1,16 @@
+package io.buybrain.hamq;
+
+import lombok.Value;
+
+/**
+ * Limit on retries across all operations of a connection, as used by {@link Config#getRetryBudget()}. Every retry
+ * takes a token from a bucket that holds at most {@code maxTokens} tokens and refills at {@code tokensPerSecond}. When
+ * the bucket is empty, operations fail with their last error instead of being retried.
+ * <p>
+ * Reconnecting and restoring channels after a failure are not limited by the budget, so consumers keep being restored.
+ */
+@Value
+public class RetryBudget {
+    int maxTokens;
+    double tokensPerSecond;
+}
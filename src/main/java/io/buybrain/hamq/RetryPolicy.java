@@ -9,7 +9,9 @@ import java.time.Duration;
 import java.util.function.Consumer;
 
 /**
- * Specification of delays, multipliers and other settings for {@link Retryer}
+ * Specification of delays, multipliers and other settings for {@link Retryer}. With jitter enabled, every delay is
+ * picked at random between the initial delay and the previous delay times the multiplier (decorrelated jitter), so
+ * clients that failed at the same moment don't retry in lockstep.
  */
 @Value
 @Wither
@@ -19,7 +21,13 @@ public class RetryPolicy {
     Duration initialDelay;
     Duration maxDelay;
     double delayMultiplier;
+    boolean jitter;
     @Wither(AccessLevel.PACKAGE) Consumer<Throwable> errorHandler;
+    // Whether this policy is used for reconnecting and restoring state, which is exempt from the retry budget and
+    // waits for the circuit breaker instead of failing fast
+    @Wither(AccessLevel.PACKAGE) boolean internal;
+    // Maximum duration of the operation as set by its specification, or null when it may retry indefinitely
+    @Wither(AccessLevel.PACKAGE) Duration timeout;
 
     public RetryPolicy() {
         retryAll = false;
@@ -27,5 +35,8 @@ public class RetryPolicy {
         initialDelay = Duration.ofSeconds(1);
         maxDelay = Duration.ofSeconds(30);
         delayMultiplier = 1.5;
+        jitter = false;
+        internal = false;
+        timeout = null;
     }
 }
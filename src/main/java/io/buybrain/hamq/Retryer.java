@@ -6,65 +6,379 @@ import io.buybrain.util.function.ThrowingRunnable;
 import io.buybrain.util.function.ThrowingSupplier;
 import io.buybrain.util.time.Clock;
 import io.buybrain.util.time.SystemClock;
+import lombok.Getter;
 import lombok.NonNull;
 import lombok.Setter;
+import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
 import lombok.val;
 
 import java.net.SocketException;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
 
 import static io.buybrain.util.Result.err;
 import static io.buybrain.util.Result.trying;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
 
 /**
- * Utility for retrying operations until they succeed while applying exponential backoff between attempts
+ * Utility for retrying operations until they succeed while applying exponential backoff between attempts. When the
+ * retry policy has a timeout, the operation gives up with an {@link OperationTimeoutException} once no further attempt
+ * fits before its deadline. The deadline also applies to everything the operation waits for on the same thread, such
+ * as connecting, which is retried by this retryer as well.
  */
 @Slf4j
 class Retryer {
+    // How often and after how long an operation is retried when its channel was replaced while it was in progress
+    private static final int MAX_REPLACEMENTS = 10;
+    private static final long REPLACEMENT_DELAY_MILLIS = 10;
+
     @Setter private Clock clock = SystemClock.get();
-    
-    void performWithRetry(@NonNull ThrowingRunnable operation, @NonNull RetryPolicy policy) {
-        val state = new RetryState();
-        while (true) {
-            if (trying(operation).mapErr(ex -> handleError(ex, policy, state)).isOk()) {
-                return;
+    @Setter private ScheduledExecutorService scheduler;
+    @Setter private Executor executor;
+    @Getter @Setter @NonNull private Metrics metrics = Metrics.NONE;
+    // Retry budget and circuit breaker shared by all operations of the connection, or null when not configured
+    @Setter private TokenBucket budget;
+    @Setter private CircuitBreaker circuitBreaker;
+    // Deadline of the operation in progress on the current thread as System.nanoTime, or null when it has none
+    private final ThreadLocal<Long> deadline = new ThreadLocal<>();
+
+    /**
+     * @return the number of attempts it took for the operation to succeed
+     */
+    int performWithRetry(@NonNull ThrowingRunnable operation, @NonNull RetryPolicy policy) {
+        val state = new RetryState(deadlineFor(policy.getTimeout()));
+        for (int attempt = 1; ; attempt++) {
+            if (trying(() -> withDeadline(state.deadline, () -> {
+                checkCircuit(policy);
+                operation.run();
+                return null;
+            })).mapErr(ex -> handleError(ex, policy, state)).isOk()) {
+                return attempt;
             }
         }
     }
 
     <T> T performWithRetry(@NonNull ThrowingSupplier<T> operation, @NonNull RetryPolicy policy) {
-        val state = new RetryState();
+        val state = new RetryState(deadlineFor(policy.getTimeout()));
         while (true) {
-            Result<T, ?> result = trying(operation).mapErr(ex -> handleError(ex, policy, state));
+            Result<T, ?> result = trying(() -> withDeadline(state.deadline, () -> {
+                checkCircuit(policy);
+                return operation.get();
+            })).mapErr(ex -> handleError(ex, policy, state));
             if (result.isOk()) {
                 return result.getUnsafe();
             }
         }
     }
 
-    private Result handleError(Throwable ex, RetryPolicy policy, RetryState state) throws Throwable {
-        if (isRetryable(ex, policy)) {
-            log.warn("Encountered error, will retry later", ex);
-            if (policy.getErrorHandler() != null) {
-                policy.getErrorHandler().accept(ex);
-            }
-            if (state.delayMillis == 0) {
-                state.delayMillis = policy.getInitialDelay().toMillis();
-            }
-            
-            Thread.sleep(state.delayMillis);
-            state.delayMillis = Math.min(
-                (long) (state.delayMillis * policy.getDelayMultiplier()),
-                policy.getMaxDelay().toMillis()
+    /**
+     * Perform an operation without blocking the calling thread. Attempts are executed on the executor, since they may
+     * block while the connection or channel is established. Backoff between attempts is implemented by scheduling the
+     * next attempt on the scheduler instead of sleeping, so the scheduler is only used for timers and never blocks.
+     *
+     * @param operation the operation to perform
+     * @param policy    the retry policy
+     * @return a future that completes with the result of the first successful attempt, or exceptionally when an
+     * error occurred that should not be retried or the deadline passed
+     */
+    <T> CompletableFuture<T> performAsync(@NonNull ThrowingSupplier<T> operation, @NonNull RetryPolicy policy) {
+        val future = new CompletableFuture<T>();
+        val state = new RetryState(deadlineFor(policy.getTimeout()));
+        if (state.deadline != null) {
+            // Also give up when an attempt itself doesn't finish before the deadline
+            getScheduler().schedule(
+                () -> future.completeExceptionally(new OperationTimeoutException(state.lastError)),
+                Math.max(0, state.deadline - System.nanoTime()),
+                NANOSECONDS
             );
-            return err(ex);
+        }
+        execute(() -> attemptAsync(operation, policy, state, future));
+        return future;
+    }
+
+    private <T> void attemptAsync(
+        ThrowingSupplier<T> operation,
+        RetryPolicy policy,
+        RetryState state,
+        CompletableFuture<T> future
+    ) {
+        if (future.isDone()) {
+            return;
+        }
+        try {
+            future.complete(withDeadline(state.deadline, () -> {
+                checkCircuit(policy);
+                return operation.get();
+            }));
+        } catch (Throwable ex) {
+            try {
+                val delay = nextDelay(ex, policy, state);
+                metrics.recordBackoffStart(delay);
+                getScheduler().schedule(
+                    () -> {
+                        metrics.recordBackoffEnd();
+                        execute(() -> attemptAsync(operation, policy, state, future));
+                    },
+                    delay,
+                    MILLISECONDS
+                );
+            } catch (Throwable fatal) {
+                future.completeExceptionally(fatal);
+            }
+        }
+    }
+
+    private void execute(Runnable task) {
+        getExecutor().execute(task);
+    }
+
+    /**
+     * Run an operation with a deadline that also applies to the operations it performs through this retryer, for
+     * operations that wait for something before they start retrying
+     *
+     * @param timeout   the maximum duration of the operation, or null when it has none
+     * @param operation the operation
+     */
+    @SneakyThrows
+    <T> T withTimeout(Duration timeout, @NonNull ThrowingSupplier<T> operation) {
+        return withDeadline(deadlineFor(timeout), operation);
+    }
+
+    /**
+     * Wait for a future to complete, up to the deadline of the operation in progress on the current thread
+     *
+     * @return the result of the future
+     * @throws OperationTimeoutException when the deadline passed first
+     */
+    @SneakyThrows
+    <T> T await(@NonNull CompletableFuture<T> future) {
+        try {
+            return deadline.get() == null ? future.get() : future.get(remainingNanos(), NANOSECONDS);
+        } catch (TimeoutException ex) {
+            throw new OperationTimeoutException(null);
+        } catch (ExecutionException ex) {
+            throw ex.getCause();
+        }
+    }
+
+    /**
+     * Acquire a lock, giving up at the deadline of the operation in progress on the current thread
+     *
+     * @throws OperationTimeoutException when the deadline passed first
+     */
+    @SneakyThrows(InterruptedException.class)
+    void lock(@NonNull Lock lock) {
+        if (deadline.get() == null) {
+            lock.lock();
+        } else if (!lock.tryLock(remainingNanos(), NANOSECONDS)) {
+            throw new OperationTimeoutException(null);
+        }
+    }
+
+    /**
+     * @return the time left until the deadline of the operation in progress on the current thread, or
+     * {@link Long#MAX_VALUE} when it has none
+     */
+    long remainingNanos() {
+        val current = deadline.get();
+        return current == null ? Long.MAX_VALUE : Math.max(0, current - System.nanoTime());
+    }
+
+    /**
+     * @return the earliest of the deadline for the given timeout and the deadline of the operation in progress on the
+     * current thread
+     */
+    private Long deadlineFor(Duration timeout) {
+        val outer = deadline.get();
+        if (timeout == null) {
+            return outer;
+        }
+        val own = System.nanoTime() + timeout.toNanos();
+        return outer == null || own - outer < 0 ? own : outer;
+    }
+
+    private <T> T withDeadline(Long operationDeadline, ThrowingSupplier<T> operation) throws Throwable {
+        val outer = deadline.get();
+        deadline.set(operationDeadline);
+        try {
+            return operation.get();
+        } finally {
+            deadline.set(outer);
+        }
+    }
+
+    /**
+     * Fail fast when the circuit breaker is open, unless the operation is part of reconnecting or restoring state
+     */
+    private void checkCircuit(RetryPolicy policy) {
+        if (circuitBreaker != null && !policy.isInternal()) {
+            circuitBreaker.check();
+        }
+    }
+
+    /**
+     * Check whether connecting is allowed by the circuit breaker
+     *
+     * @throws CircuitOpenException when the circuit is open
+     */
+    void checkConnect() {
+        if (circuitBreaker != null) {
+            circuitBreaker.check();
+        }
+    }
+
+    /**
+     * Report the result of connecting to the circuit breaker
+     *
+     * @param success whether a connection was made
+     */
+    void recordConnect(boolean success) {
+        if (circuitBreaker == null) {
+            return;
+        }
+        if (success) {
+            circuitBreaker.recordSuccess();
         } else {
+            circuitBreaker.recordFailure();
+        }
+    }
+
+    /**
+     * Get the executor that runs the attempts of asynchronous operations. Unless one was set explicitly, a pool of
+     * daemon threads is started on first use, with one thread per processor.
+     *
+     * @return the executor
+     */
+    synchronized Executor getExecutor() {
+        if (executor == null) {
+            val counter = new AtomicInteger();
+            executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), runnable -> {
+                val thread = new Thread(runnable, "hamq-async-" + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return executor;
+    }
+
+    /**
+     * Get the scheduler for the timers of asynchronous operations, such as backoff, deadlines and periodic flushes.
+     * Tasks on it must not block. Unless one was set explicitly, a single daemon thread is started on first use.
+     *
+     * @return the scheduler
+     */
+    synchronized ScheduledExecutorService getScheduler() {
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                val thread = new Thread(runnable, "hamq-scheduler");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return scheduler;
+    }
+
+    private Result handleError(Throwable ex, RetryPolicy policy, RetryState state) throws Throwable {
+        val delay = nextDelay(ex, policy, state);
+        metrics.recordBackoffStart(delay);
+        try {
+            Thread.sleep(delay);
+        } finally {
+            metrics.recordBackoffEnd();
+        }
+        return err(ex);
+    }
+
+    /**
+     * Handle a failed attempt and calculate how long to wait before the next one
+     *
+     * @return the delay in milliseconds
+     * @throws Throwable the original error when it should not be retried, or an {@link OperationTimeoutException}
+     * when the next attempt would start after the deadline
+     */
+    private long nextDelay(Throwable ex, RetryPolicy policy, RetryState state) throws Throwable {
+        val timeout = findTimeout(ex);
+        if (timeout != null) {
+            // Something the attempt waited for, such as connecting, already ran into the deadline
+            throw timeout;
+        }
+        state.lastError = ex;
+        val delay = backoff(ex, policy, state);
+        if (state.deadline != null && System.nanoTime() + MILLISECONDS.toNanos(delay) - state.deadline >= 0) {
+            log.warn("No attempt left before the deadline, giving up");
+            throw new OperationTimeoutException(ex);
+        }
+        return delay;
+    }
+
+    private long backoff(Throwable ex, RetryPolicy policy, RetryState state) throws Throwable {
+        if (!isRetryable(ex, policy)) {
             throw ex;
         }
+        if (ex instanceof ChannelReplacedException) {
+            // Nothing failed, the next attempt picks up the current channel. Give the reset that replaces the channel a
+            // moment to finish, but don't keep trying when the channel never settles.
+            if (++state.replacements > MAX_REPLACEMENTS) {
+                throw ex;
+            }
+            return REPLACEMENT_DELAY_MILLIS;
+        }
+        if (budget != null && !policy.isInternal() && !budget.tryAcquire()) {
+            log.warn("Retry budget exhausted, giving up");
+            throw ex;
+        }
+        log.warn("Encountered error, will retry later", ex);
+        if (policy.getErrorHandler() != null) {
+            // Recovering is shared with other users of the connection, so it isn't cut short by this deadline
+            withDeadline(null, () -> {
+                policy.getErrorHandler().accept(ex);
+                return null;
+            });
+        }
+        if (ex instanceof CircuitOpenException) {
+            // Wait until the circuit breaker allows another attempt, without affecting the backoff
+            return Math.max(((CircuitOpenException) ex).getRemaining().toMillis(), 1);
+        }
+        if (policy.isJitter()) {
+            return nextJitteredDelay(policy, state);
+        }
+        if (state.delayMillis == 0) {
+            state.delayMillis = policy.getInitialDelay().toMillis();
+        }
+
+        val delay = state.delayMillis;
+        state.delayMillis = Math.min(
+            (long) (state.delayMillis * policy.getDelayMultiplier()),
+            policy.getMaxDelay().toMillis()
+        );
+        return delay;
+    }
+
+    /**
+     * Pick a random delay between the initial delay and the previous delay times the multiplier, capped at the maximum
+     * delay
+     */
+    private static long nextJitteredDelay(RetryPolicy policy, RetryState state) {
+        val base = policy.getInitialDelay().toMillis();
+        val previous = state.delayMillis == 0 ? base : state.delayMillis;
+        val upper = Math.max(base, (long) (previous * policy.getDelayMultiplier()));
+        val delay = ThreadLocalRandom.current().nextLong(base, upper + 1);
+        state.delayMillis = Math.min(delay, policy.getMaxDelay().toMillis());
+        return state.delayMillis;
     }
 
     private boolean isRetryable(Throwable ex, RetryPolicy policy) {
-        return policy.isRetryAll() || isNetworkError(ex);
+        return policy.isRetryAll() || isNetworkError(ex) || ex instanceof ChannelReplacedException;
     }
 
     public static boolean isNetworkError(@NonNull Throwable ex) {
@@ -80,6 +394,19 @@ class Retryer {
         return false;
     }
 
+    /**
+     * @return the {@link OperationTimeoutException} that is the given error or one of its causes, or null if there is
+     * none
+     */
+    static OperationTimeoutException findTimeout(Throwable ex) {
+        for (Throwable cause = ex; cause != null; cause = cause.getCause() == cause ? null : cause.getCause()) {
+            if (cause instanceof OperationTimeoutException) {
+                return (OperationTimeoutException) cause;
+            }
+        }
+        return null;
+    }
+
     public static boolean shouldReconnectToRecover(@NonNull Throwable ex) {
         if (isNetworkError(ex)) {
             return true;
@@ -94,6 +421,13 @@ class Retryer {
     }
 
     private static class RetryState {
+        final Long deadline;
         long delayMillis;
+        int replacements;
+        volatile Throwable lastError;
+
+        RetryState(Long deadline) {
+            this.deadline = deadline;
+        }
     }
 }
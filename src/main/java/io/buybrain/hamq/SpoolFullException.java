@@ -0,0 +1,11 @@
+package io.buybrain.hamq;
+
+/**
+ * Thrown when a message is published while the publish spool is full and the overflow policy is
+ * {@link SpoolOverflowPolicy#FAIL}.
+ */
+public class SpoolFullException extends RuntimeException {
+    public SpoolFullException(String message) {
+        super(message);
+    }
+}
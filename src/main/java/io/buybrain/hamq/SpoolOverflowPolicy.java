@@ -0,0 +1,19 @@
+package io.buybrain.hamq;
+
+/**
+ * What to do when a message is published while the publish spool is full
+ */
+public enum SpoolOverflowPolicy {
+    /**
+     * Block the publishing thread until the spool has drained enough to accept the message
+     */
+    BLOCK,
+    /**
+     * Throw a {@link SpoolFullException}
+     */
+    FAIL,
+    /**
+     * Drop the message and log a warning
+     */
+    DROP
+}
@@ -0,0 +1,33 @@
+package io.buybrain.hamq;
+
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import lombok.NonNull;
+import lombok.Value;
+import lombok.experimental.Wither;
+
+import java.nio.file.Path;
+
+/**
+ * Specification for spooling published messages to disk as used by {@link Channel#spool}.
+ */
+@Value
+@EqualsAndHashCode(callSuper = true)
+@Wither
+@AllArgsConstructor
+public class SpoolSpec extends OperationSpec<SpoolSpec> {
+    @NonNull Path directory;
+    long maxBytes;
+    int segmentBytes;
+    @NonNull SpoolOverflowPolicy overflowPolicy;
+
+    /**
+     * @param directory the directory to store spool segments in. Should not be shared with other channels.
+     */
+    public SpoolSpec(@NonNull Path directory) {
+        this.directory = directory;
+        maxBytes = 1024L * 1024 * 1024;
+        segmentBytes = 64 * 1024 * 1024;
+        overflowPolicy = SpoolOverflowPolicy.BLOCK;
+    }
+}
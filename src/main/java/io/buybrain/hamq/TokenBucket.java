@@ -0,0 +1,48 @@
+package io.buybrain.hamq;
+
+import lombok.NonNull;
+import lombok.val;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Token bucket that implements a {@link RetryBudget}
+ */
+class TokenBucket {
+    private final double maxTokens;
+    private final double tokensPerNano;
+    private final LongSupplier nanoTime;
+    private double tokens;
+    private long refilledAt;
+
+    TokenBucket(@NonNull RetryBudget budget) {
+        this(budget, System::nanoTime);
+    }
+
+    TokenBucket(@NonNull RetryBudget budget, @NonNull LongSupplier nanoTime) {
+        if (budget.getMaxTokens() < 1 || budget.getTokensPerSecond() < 0) {
+            throw new IllegalArgumentException("Invalid retry budget " + budget);
+        }
+        maxTokens = budget.getMaxTokens();
+        tokensPerNano = budget.getTokensPerSecond() / 1e9;
+        this.nanoTime = nanoTime;
+        tokens = maxTokens;
+        refilledAt = nanoTime.getAsLong();
+    }
+
+    /**
+     * Take a token if there is one
+     *
+     * @return whether a token was taken
+     */
+    synchronized boolean tryAcquire() {
+        val now = nanoTime.getAsLong();
+        tokens = Math.min(maxTokens, tokens + (now - refilledAt) * tokensPerNano);
+        refilledAt = now;
+        if (tokens < 1) {
+            return false;
+        }
+        tokens--;
+        return true;
+    }
+}
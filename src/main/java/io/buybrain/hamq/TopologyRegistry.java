@@ -0,0 +1,140 @@
+package io.buybrain.hamq;
+
+import lombok.NonNull;
+import lombok.val;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Registry of the exchanges, queues and bindings that were declared on a connection or channel. Declarations are kept
+ * in order and only once, however often they were repeated. After the connection was lost, its {@link ConnectionSlot}
+ * restores the topology once on the new connection, before any of its channels uses it. After a channel error, the
+ * channel only restores what disappeared with its consumers.
+ */
+class TopologyRegistry {
+    private final Set<ExchangeSpec> exchanges = new LinkedHashSet<>();
+    private final Set<QueueSpec> queues = new LinkedHashSet<>();
+    private final Set<BindSpec> binds = new LinkedHashSet<>();
+
+    synchronized void add(@NonNull ExchangeSpec spec) {
+        exchanges.add(spec);
+    }
+
+    synchronized void add(@NonNull QueueSpec spec) {
+        queues.add(spec);
+    }
+
+    synchronized void add(@NonNull BindSpec spec) {
+        binds.add(spec);
+    }
+
+    /**
+     * Get the declarations that the broker deletes once they are no longer used: auto-delete queues, which disappear
+     * when their last consumer is cancelled, auto-delete exchanges, and the bindings of either
+     *
+     * @return a new registry with these declarations
+     */
+    synchronized TopologyRegistry autoDeleting() {
+        val result = new TopologyRegistry();
+        val exchangeNames = new HashSet<String>();
+        val queueNames = new HashSet<String>();
+        for (val spec : exchanges) {
+            if (spec.isAutoDelete()) {
+                result.exchanges.add(spec);
+                exchangeNames.add(spec.getName());
+            }
+        }
+        for (val spec : queues) {
+            if (spec.isAutoDelete()) {
+                result.queues.add(spec);
+                queueNames.add(spec.getName());
+            }
+        }
+        for (val spec : binds) {
+            if (exchangeNames.contains(spec.getExchange()) || queueNames.contains(spec.getQueue())) {
+                result.binds.add(spec);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the number of distinct declarations in the registry
+     */
+    synchronized int size() {
+        return exchanges.size() + queues.size() + binds.size();
+    }
+
+    /**
+     * Declare all registered exchanges, queues and bindings again, in that order so that everything a declaration
+     * depends on exists before it. All but the last declaration are sent without waiting for a reply, so the whole
+     * topology is restored in a single round trip. The broker processes methods on a channel in order, so once the
+     * last declaration is answered, all previous ones have succeeded as well. A failing declaration closes the channel,
+     * which makes the last one fail.
+     *
+     * @param chan the channel to declare the topology on
+     * @throws IOException when any of the declarations failed
+     */
+    synchronized void restore(@NonNull BackendChannel chan) throws IOException {
+        int remaining = size();
+        for (val spec : exchanges) {
+            declareExchange(chan, spec, --remaining == 0);
+        }
+        for (val spec : queues) {
+            declareQueue(chan, spec, --remaining == 0);
+        }
+        for (val spec : binds) {
+            bindQueue(chan, spec, --remaining == 0);
+        }
+    }
+
+    /**
+     * @param wait whether to wait for the broker to reply, or to send the declaration without a reply
+     */
+    static void declareExchange(BackendChannel chan, ExchangeSpec spec, boolean wait) throws IOException {
+        if (wait) {
+            chan.exchangeDeclare(
+                spec.getName(),
+                spec.getType(),
+                spec.isDurable(),
+                spec.isAutoDelete(),
+                spec.isInternal(),
+                spec.getArgs()
+            );
+        } else {
+            chan.exchangeDeclareNoWait(
+                spec.getName(),
+                spec.getType(),
+                spec.isDurable(),
+                spec.isAutoDelete(),
+                spec.isInternal(),
+                spec.getArgs()
+            );
+        }
+    }
+
+    static void declareQueue(BackendChannel chan, QueueSpec spec, boolean wait) throws IOException {
+        if (wait) {
+            chan.queueDeclare(spec.getName(), spec.isDurable(), spec.isExclusive(), spec.isAutoDelete(), spec.getArgs());
+        } else {
+            chan.queueDeclareNoWait(
+                spec.getName(),
+                spec.isDurable(),
+                spec.isExclusive(),
+                spec.isAutoDelete(),
+                spec.getArgs()
+            );
+        }
+    }
+
+    static void bindQueue(BackendChannel chan, BindSpec spec, boolean wait) throws IOException {
+        if (wait) {
+            chan.queueBind(spec.getQueue(), spec.getExchange(), spec.getRoutingKey(), spec.getArgs());
+        } else {
+            chan.queueBindNoWait(spec.getQueue(), spec.getExchange(), spec.getRoutingKey(), spec.getArgs());
+        }
+    }
+}
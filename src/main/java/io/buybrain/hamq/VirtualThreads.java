@@ -0,0 +1,64 @@
+package io.buybrain.hamq;
+
+import lombok.NonNull;
+import lombok.val;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Access to virtual threads. HAmq is compiled for Java 8, so the Java 21 APIs for creating virtual threads are looked
+ * up reflectively.
+ */
+class VirtualThreads {
+    /**
+     * @return whether the running JVM supports virtual threads
+     */
+    static boolean isSupported() {
+        try {
+            Thread.class.getMethod("ofVirtual");
+            return true;
+        } catch (NoSuchMethodException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Create an executor that starts a new virtual thread for every task
+     *
+     * @return the executor
+     * @throws UnsupportedOperationException when virtual threads are not supported by the running JVM
+     */
+    static ExecutorService newExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException ex) {
+            throw unsupported(ex);
+        }
+    }
+
+    /**
+     * Create a factory for named virtual threads
+     *
+     * @param name prefix for the names of created threads
+     * @return the thread factory
+     * @throws UnsupportedOperationException when virtual threads are not supported by the running JVM
+     */
+    static ThreadFactory threadFactory(@NonNull String name) {
+        try {
+            val builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, name + "-", 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException ex) {
+            throw unsupported(ex);
+        }
+    }
+
+    private static UnsupportedOperationException unsupported(Throwable cause) {
+        val ex = new UnsupportedOperationException("Virtual threads require Java 21 or higher");
+        ex.initCause(cause);
+        return ex;
+    }
+}
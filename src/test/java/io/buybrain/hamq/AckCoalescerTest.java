@@ -0,0 +1,96 @@
+package io.buybrain.hamq;
+
+import lombok.val;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.time.Duration;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.*;
+
+public class AckCoalescerTest {
+    private BackendChannel channel;
+    private ScheduledExecutorService scheduler;
+    private AckCoalescer SUT;
+    private ConsumeSpec spec;
+
+    @BeforeMethod
+    public void setUp() {
+        channel = mock(BackendChannel.class);
+        scheduler = mock(ScheduledExecutorService.class);
+        SUT = new AckCoalescer(channel, scheduler);
+        spec = new ConsumeSpec("q", delivery -> {})
+            .withAckBatchSize(3)
+            .withAckBatchWindow(Duration.ofSeconds(1));
+    }
+
+    @Test
+    public void testCoalesceContiguousAcks() throws Exception {
+        SUT.ack(1, spec);
+        SUT.ack(2, spec);
+        verifyZeroInteractions(channel);
+
+        SUT.ack(3, spec);
+        verify(channel).basicAck(3, true);
+        verifyNoMoreInteractions(channel);
+    }
+
+    @Test
+    public void testOutOfOrderCompletion() throws Exception {
+        // Tag 1 is still being processed, so the acks for 2 to 4 may not be combined yet
+        SUT.ack(2, spec);
+        SUT.ack(3, spec);
+        SUT.ack(4, spec);
+        verify(channel, never()).basicAck(anyLong(), anyBoolean());
+
+        // Nacking 1 settles it, after which the next ack covers everything up to 5
+        SUT.nack(1);
+        SUT.ack(5, spec);
+
+        val ordered = inOrder(channel);
+        ordered.verify(channel).basicNack(1);
+        ordered.verify(channel).basicAck(5, true);
+        ordered.verifyNoMoreInteractions();
+    }
+
+    @Test
+    public void testFlushSendsAcksAheadOfGapIndividually() throws Exception {
+        SUT.ack(1, spec);
+        SUT.ack(3, spec);
+
+        SUT.flush();
+
+        verify(channel).basicAck(1, true);
+        verify(channel).basicAck(3);
+        verifyNoMoreInteractions(channel);
+    }
+
+    @Test
+    public void testUncoalescedAcksAreSentImmediately() throws Exception {
+        SUT.ack(1, new ConsumeSpec("q", delivery -> {}));
+
+        verify(channel).basicAck(1);
+        verifyNoMoreInteractions(channel);
+    }
+
+    @Test
+    public void testCloseFlushesAndCancelsScheduledFlush() throws Exception {
+        val scheduledFlush = mock(ScheduledFuture.class);
+        doReturn(scheduledFlush).when(scheduler).schedule(any(Runnable.class), anyLong(), any(TimeUnit.class));
+        SUT.ack(1, spec);
+
+        SUT.close();
+        verify(scheduledFlush).cancel(false);
+        verify(channel).basicAck(1, true);
+
+        // Acks that arrive after closing are not held back anymore
+        SUT.ack(2, spec);
+        verify(channel).basicAck(2);
+        verifyNoMoreInteractions(channel);
+    }
+}
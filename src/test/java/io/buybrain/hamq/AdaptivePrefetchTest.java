@@ -0,0 +1,67 @@
+package io.buybrain.hamq;
+
+import lombok.val;
+import org.testng.annotations.Test;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+public class AdaptivePrefetchTest {
+    private static final long MILLIS = Duration.ofMillis(1).toNanos();
+    private static final long SECOND = Duration.ofSeconds(1).toNanos();
+
+    @Test
+    public void testInitialAmountWithinBounds() {
+        val SUT = new AdaptivePrefetch(new PrefetchSpec(500).withAdaptiveBounds(10, 200), () -> 0);
+
+        assertThat(SUT.getAmount(), is(200));
+        assertThat(SUT.next(), is(200));
+    }
+
+    @Test
+    public void testLowerWhenDeliveriesWait() {
+        val now = new AtomicLong();
+        val SUT = new AdaptivePrefetch(new PrefetchSpec(100).withAdaptiveBounds(10, 200), now::get);
+
+        // Deliveries take 10ms to process but wait another 90ms for a worker, so 9 are queued per worker
+        for (int i = 0; i < 10; i++) {
+            SUT.recordProcessing(10 * MILLIS);
+            SUT.recordAck(100 * MILLIS);
+        }
+        now.set(SECOND);
+
+        assertThat(SUT.next(), is(20));
+    }
+
+    @Test
+    public void testRaiseWhenWindowIsFull() {
+        val now = new AtomicLong();
+        val SUT = new AdaptivePrefetch(new PrefetchSpec(10).withAdaptiveBounds(10, 200), now::get);
+
+        // 1000 deliveries per second that are each unacknowledged for 10ms keep all 10 prefetched deliveries busy
+        for (int i = 0; i < 1000; i++) {
+            SUT.recordProcessing(10 * MILLIS);
+            SUT.recordAck(10 * MILLIS);
+        }
+        now.set(SECOND);
+
+        assertThat(SUT.next(), is(20));
+    }
+
+    @Test
+    public void testKeepAmountWhenBalanced() {
+        val now = new AtomicLong();
+        val SUT = new AdaptivePrefetch(new PrefetchSpec(50).withAdaptiveBounds(10, 200), now::get);
+
+        for (int i = 0; i < 100; i++) {
+            SUT.recordProcessing(10 * MILLIS);
+            SUT.recordAck(15 * MILLIS);
+        }
+        now.set(SECOND);
+
+        assertThat(SUT.next(), is(50));
+    }
+}
@@ -4,6 +4,8 @@ import io.buybrain.util.Env;
 import lombok.val;
 import org.testng.annotations.Test;
 
+import java.time.Duration;
+import java.util.Arrays;
 import java.util.HashMap;
 
 import static org.hamcrest.MatcherAssert.assertThat;
@@ -25,4 +27,44 @@ public class ConfigTest {
         
         assertThat(config, is(expected));
     }
+
+    @Test
+    public void testAddressesFromEnv() {
+        val env = new Env(new HashMap<String, String>(){{
+            put("MQ_PORT", "5673");
+            put("MQ_ADDRESSES", "node1, node2:5674,[::1]:5675,::1");
+        }});
+
+        val config = Config.ofEnv(env, "MQ_");
+
+        assertThat(config.getBrokerAddresses(), is(Arrays.asList(
+            new BrokerAddress("node1", 5673),
+            new BrokerAddress("node2", 5674),
+            new BrokerAddress("::1", 5675),
+            new BrokerAddress("::1", 5673)
+        )));
+    }
+
+    @Test
+    public void testHostIsUsedWithoutAddresses() {
+        val config = new Config().withHost("a").withPort(123);
+
+        assertThat(config.getBrokerAddresses(), is(Arrays.asList(new BrokerAddress("a", 123))));
+    }
+
+    @Test
+    public void testPositionalConstructorKeepsDefaults() {
+        val retryPolicy = new RetryPolicy().withInitialDelay(Duration.ofMillis(10));
+
+        val config = new Config("a", 123, "b", "c", "d", retryPolicy);
+        val expected = new Config()
+            .withHost("a")
+            .withPort(123)
+            .withUsername("b")
+            .withPassword("c")
+            .withVhost("d")
+            .withRetryPolicy(retryPolicy);
+
+        assertThat(config, is(expected));
+    }
 }
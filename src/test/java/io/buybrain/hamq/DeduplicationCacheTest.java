@@ -0,0 +1,52 @@
+package io.buybrain.hamq;
+
+import lombok.val;
+import org.testng.annotations.Test;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+public class DeduplicationCacheTest {
+    @Test
+    public void testEvictOldestWhenFull() {
+        val SUT = new DeduplicationCache(2, Duration.ofMinutes(1), () -> 0);
+        SUT.add("a");
+        SUT.add("b");
+        SUT.add("c");
+
+        assertThat(SUT.contains("a"), is(false));
+        assertThat(SUT.contains("b"), is(true));
+        assertThat(SUT.contains("c"), is(true));
+        assertThat(SUT.size(), is(2));
+    }
+
+    @Test
+    public void testEvictAfterTimeToLive() {
+        val now = new AtomicLong();
+        val SUT = new DeduplicationCache(10, Duration.ofSeconds(10), now::get);
+        SUT.add("a");
+        now.set(Duration.ofSeconds(5).toNanos());
+        SUT.add("b");
+
+        now.set(Duration.ofSeconds(12).toNanos());
+        assertThat(SUT.contains("a"), is(false));
+        assertThat(SUT.contains("b"), is(true));
+    }
+
+    @Test
+    public void testAddingAgainRefreshes() {
+        val now = new AtomicLong();
+        val SUT = new DeduplicationCache(2, Duration.ofSeconds(10), now::get);
+        SUT.add("a");
+        SUT.add("b");
+        now.set(Duration.ofSeconds(5).toNanos());
+        SUT.add("a");
+        SUT.add("c");
+
+        assertThat(SUT.contains("a"), is(true));
+        assertThat(SUT.contains("b"), is(false));
+    }
+}
@@ -0,0 +1,44 @@
+package io.buybrain.hamq;
+
+import lombok.val;
+import org.testng.annotations.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+public class HistogramTest {
+    @Test
+    public void testEmpty() {
+        val histogram = new Histogram();
+
+        assertThat(histogram.getCount(), is(0L));
+        assertThat(histogram.getPercentile(99), is(0L));
+        assertThat(histogram.getMean(), is(0.0));
+    }
+
+    @Test
+    public void testPercentiles() {
+        val histogram = new Histogram();
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i);
+        }
+
+        assertThat(histogram.getCount(), is(100L));
+        assertThat(histogram.getTotal(), is(5050L));
+        assertThat(histogram.getMax(), is(100L));
+        // 50 falls in the bucket of 32 to 63
+        assertThat(histogram.getPercentile(50), is(63L));
+        // The highest bucket is capped at the maximum
+        assertThat(histogram.getPercentile(100), is(100L));
+        assertThat(histogram.getPercentile(1), is(1L));
+    }
+
+    @Test
+    public void testNegativeValuesAreRecordedAsZero() {
+        val histogram = new Histogram();
+        histogram.record(-5);
+
+        assertThat(histogram.getMax(), is(0L));
+        assertThat(histogram.getPercentile(50), is(0L));
+    }
+}
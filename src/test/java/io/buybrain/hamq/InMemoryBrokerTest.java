@@ -0,0 +1,465 @@
+package io.buybrain.hamq;
+
+import lombok.val;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static io.buybrain.util.Result.trying;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+public class InMemoryBrokerTest {
+    private InMemoryBroker broker;
+    private Connection SUT;
+
+    @BeforeMethod
+    public void setUp() {
+        broker = new InMemoryBroker();
+        val config = new Config().withRetryPolicy(new RetryPolicy().withInitialDelay(Duration.ofMillis(10)));
+        SUT = Connections.createInMemory(config, broker);
+    }
+
+    @Test
+    public void testRouting() {
+        val ch = SUT.createChannel();
+        ch.exchangeDeclare(new ExchangeSpec("direct", "direct"));
+        ch.exchangeDeclare(new ExchangeSpec("fanout", "fanout"));
+        ch.exchangeDeclare(new ExchangeSpec("topic", "topic"));
+        ch.queueDeclare(new QueueSpec("a"));
+        ch.queueDeclare(new QueueSpec("b"));
+        ch.queueBind(new BindSpec("a", "direct").withRoutingKey("key"));
+        ch.queueBind(new BindSpec("a", "fanout"));
+        ch.queueBind(new BindSpec("b", "fanout"));
+        ch.queueBind(new BindSpec("b", "topic").withRoutingKey("orders.*.created"));
+
+        ch.publish(new PublishSpec("direct", "key", "1".getBytes()));
+        ch.publish(new PublishSpec("direct", "other", "2".getBytes()));
+        ch.publish(new PublishSpec("fanout", "", "3".getBytes()));
+        ch.publish(new PublishSpec("topic", "orders.eu.created", "4".getBytes()));
+        ch.publish(new PublishSpec("topic", "orders.eu.deleted", "5".getBytes()));
+        ch.publish(PublishSpec.queue("b", "6".getBytes()));
+
+        assertThat(broker.getMessageCount("a"), is(2));
+        assertThat(broker.getMessageCount("b"), is(3));
+    }
+
+    @Test
+    public void testTopicMatching() {
+        assertThat(InMemoryBroker.matchesTopic("a.*.c", "a.b.c"), is(true));
+        assertThat(InMemoryBroker.matchesTopic("a.*.c", "a.c"), is(false));
+        assertThat(InMemoryBroker.matchesTopic("a.#", "a"), is(true));
+        assertThat(InMemoryBroker.matchesTopic("a.#", "a.b.c"), is(true));
+        assertThat(InMemoryBroker.matchesTopic("#.c", "a.b.c"), is(true));
+        assertThat(InMemoryBroker.matchesTopic("#", ""), is(true));
+        assertThat(InMemoryBroker.matchesTopic("a.#.d", "a.b.c"), is(false));
+    }
+
+    @Test
+    public void testPrefetchLimitsUnackedDeliveries() throws Exception {
+        val ch = SUT.createChannel();
+        ch.queueDeclare(new QueueSpec("source"));
+        for (int i = 0; i < 10; i++) {
+            ch.publish(PublishSpec.queue("source", Integer.toString(i).getBytes()));
+        }
+
+        val received = new ArrayBlockingQueue<Delivery>(10);
+        ch.prefetch(new PrefetchSpec(2));
+        ch.consume(new ConsumeSpec("source", received::add));
+
+        val first = received.poll(5, TimeUnit.SECONDS);
+        received.poll(5, TimeUnit.SECONDS);
+        assertThat(received.poll(100, TimeUnit.MILLISECONDS) == null, is(true));
+        assertThat(broker.getMessageCount("source"), is(8));
+
+        // Acking makes room for the next delivery
+        first.ack();
+        assertThat(received.poll(5, TimeUnit.SECONDS).getBodyAsString(), is("2"));
+    }
+
+    @Test
+    public void testAdaptivePrefetchLimitsStartedConsumers() throws Exception {
+        val ch = SUT.createChannel();
+        ch.queueDeclare(new QueueSpec("source"));
+        for (int i = 0; i < 20; i++) {
+            ch.publish(PublishSpec.queue("source", Integer.toString(i).getBytes()));
+        }
+
+        val received = new ArrayBlockingQueue<Delivery>(20);
+        // The interval is too long to pass during the test, the adjustment is triggered explicitly instead
+        ch.prefetch(new PrefetchSpec(4).withAdaptiveBounds(1, 4).withAdjustInterval(Duration.ofHours(1)));
+        ch.consume(new ConsumeSpec("source", received::add));
+
+        val first = new ArrayList<Delivery>();
+        for (int i = 0; i < 4; i++) {
+            first.add(received.poll(5, TimeUnit.SECONDS));
+        }
+
+        // Deliveries wait much longer to be acked than they take to process, so the amount is lowered to 1
+        val prefetcher = ch.getAdaptivePrefetch();
+        for (int i = 0; i < 100; i++) {
+            prefetcher.recordProcessing(1_000);
+            prefetcher.recordAck(1_000_000_000);
+        }
+        ch.adjustPrefetch();
+        assertThat(prefetcher.getAmount(), is(1));
+
+        for (val delivery : first) {
+            delivery.ack();
+        }
+        assertThat(received.poll(5, TimeUnit.SECONDS) == null, is(false));
+        assertThat(received.poll(200, TimeUnit.MILLISECONDS) == null, is(true));
+        ch.close();
+    }
+
+    @Test
+    public void testByteBudgetPausesDeliveries() throws Exception {
+        val ch = SUT.createChannel();
+        ch.queueDeclare(new QueueSpec("source"));
+        for (int i = 0; i < 4; i++) {
+            ch.publish(PublishSpec.queue("source", new byte[150]));
+        }
+
+        val received = new ArrayBlockingQueue<Delivery>(4);
+        ch.prefetch(new PrefetchSpec(2).withMaxBytes(100));
+        ch.consume(new ConsumeSpec("source", received::add));
+
+        val first = received.poll(5, TimeUnit.SECONDS);
+        val second = received.poll(5, TimeUnit.SECONDS);
+
+        // The prefetch would allow another delivery, but the second one still exceeds the budget
+        first.ack();
+        assertThat(received.poll(200, TimeUnit.MILLISECONDS) == null, is(true));
+
+        second.ack();
+        assertThat(received.poll(5, TimeUnit.SECONDS) == null, is(false));
+    }
+
+    @Test
+    public void testProcessedRedeliveriesAreSkipped() throws Exception {
+        val ch = SUT.createChannel();
+        ch.queueDeclare(new QueueSpec("source"));
+        ch.publish(PublishSpec.queue("source", "1".getBytes()).withMessageId("a"));
+
+        val received = new ArrayBlockingQueue<Delivery>(10);
+        ch.consume(new ConsumeSpec("source", received::add).withDeduplicationByMessageId());
+
+        // The ack is lost with the connection, after the message was processed
+        val first = received.poll(5, TimeUnit.SECONDS);
+        broker.dropConnections();
+        trying(first::ack);
+
+        // The redelivery is acked without being processed again
+        ch.publish(PublishSpec.queue("source", "2".getBytes()).withMessageId("b"));
+        val next = received.poll(5, TimeUnit.SECONDS);
+        assertThat(next.getBodyAsString(), is("2"));
+        next.ack();
+        assertThat(received.poll(100, TimeUnit.MILLISECONDS) == null, is(true));
+        assertThat(broker.getMessageCount("source"), is(0));
+    }
+
+    @Test
+    public void testRedeliveryAfterDroppedConnection() throws Exception {
+        val ch = SUT.createChannel();
+        ch.queueDeclare(new QueueSpec("source"));
+        ch.publish(PublishSpec.queue("source", "hi".getBytes()));
+
+        val received = new ArrayBlockingQueue<Delivery>(10);
+        ch.consume(new ConsumeSpec("source", received::add));
+
+        val first = received.poll(5, TimeUnit.SECONDS);
+        assertThat(first.getEnvelope().isRedeliver(), is(false));
+
+        // The message was never acked, so it is redelivered once the channel recovered
+        broker.dropConnections();
+        val second = received.poll(5, TimeUnit.SECONDS);
+        assertThat(second.getBodyAsString(), is("hi"));
+        assertThat(second.getEnvelope().isRedeliver(), is(true));
+        second.ack();
+    }
+
+    @Test
+    public void testChannelErrorKeepsConnection() throws Exception {
+        val metrics = new RecordingMetrics();
+        SUT.setMetrics(metrics);
+        val consuming = SUT.createChannel();
+        consuming.queueDeclare(new QueueSpec("source"));
+        val received = new ArrayBlockingQueue<Delivery>(10);
+        consuming.consume(new ConsumeSpec("source", received::add));
+
+        // Binding a missing queue closes the channel with a 404, which is not retried
+        val failing = SUT.createChannel();
+        boolean failed = false;
+        try {
+            failing.queueBind(new BindSpec("missing", "amq.direct"));
+        } catch (Exception ex) {
+            failed = true;
+        }
+        assertThat(failed, is(true));
+
+        // The failing channel was reopened on the same connection, and the consumer kept running
+        failing.publish(PublishSpec.queue("source", "hi".getBytes()));
+        assertThat(received.poll(5, TimeUnit.SECONDS).getBodyAsString(), is("hi"));
+        assertThat(metrics.getConnectLatency().getCount(), is(1L));
+    }
+
+    @Test
+    public void testConcurrentFailuresReconnectOnce() throws Exception {
+        val metrics = new RecordingMetrics();
+        SUT.setMetrics(metrics);
+        val ch = SUT.createChannel();
+        ch.queueDeclare(new QueueSpec("target"));
+
+        val threads = 8;
+        val dropped = new CountDownLatch(1);
+        val done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            new Thread(() -> {
+                try {
+                    ch.publish(PublishSpec.queue("target", "before".getBytes()));
+                    dropped.await();
+                    // All threads run into the same dropped connection, which should only be replaced once
+                    ch.publish(PublishSpec.queue("target", "after".getBytes()));
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        broker.dropConnections();
+        dropped.countDown();
+
+        assertThat(done.await(5, TimeUnit.SECONDS), is(true));
+        assertThat(broker.getMessageCount("target"), is(threads * 2));
+        assertThat(metrics.getConnectLatency().getCount(), is(2L));
+        assertThat(metrics.getResetLatency().getCount(), is(1L));
+    }
+
+    @Test
+    public void testPublishWaitsForUnavailableBroker() throws Exception {
+        val ch = SUT.createChannel();
+        ch.queueDeclare(new QueueSpec("target"));
+        broker.setAvailable(false);
+
+        val published = new CountDownLatch(1);
+        new Thread(() -> {
+            ch.publish(PublishSpec.queue("target", "hi".getBytes()));
+            published.countDown();
+        }).start();
+
+        assertThat(published.await(100, TimeUnit.MILLISECONDS), is(false));
+        broker.setAvailable(true);
+        assertThat(published.await(5, TimeUnit.SECONDS), is(true));
+        assertThat(broker.getMessageCount("target"), is(1));
+    }
+
+    @Test
+    public void testTopologyRestoredAfterDroppedConnection() {
+        val ch = SUT.createChannel();
+        ch.exchangeDeclare(new ExchangeSpec("broadcast", "fanout"));
+        ch.queueDeclare(new QueueSpec("events").withExclusive(true));
+        ch.queueBind(new BindSpec("events", "broadcast"));
+        ch.queueBind(new BindSpec("events", "broadcast"));
+
+        // The exclusive queue and its binding are gone with the connection, and have to be declared again
+        broker.dropConnections();
+        ch.publish(new PublishSpec("broadcast", "", "hi".getBytes()));
+
+        assertThat(broker.getMessageCount("events"), is(1));
+    }
+
+    @Test
+    public void testPublishTemplateRecovers() {
+        val ch = SUT.createChannel();
+        ch.queueDeclare(new QueueSpec("target"));
+        val template = new PublishTemplate(PublishSpec.queue("target", null));
+
+        ch.publish(template, "1".getBytes());
+        // The direct attempt fails on the dropped connection, after which the message is published with retries
+        broker.dropConnections();
+        ch.publish(template, "2".getBytes());
+
+        assertThat(broker.getMessageCount("target"), is(2));
+    }
+
+    @Test
+    public void testPooledPublishRecovers() {
+        SUT.createChannel().queueDeclare(new QueueSpec("target"));
+        val template = new PublishTemplate(PublishSpec.queue("target", null));
+
+        SUT.publish(template, "1".getBytes());
+        // The direct attempt fails on the dropped connection and is published again with retries
+        broker.dropConnections();
+        SUT.publish(template, "2".getBytes());
+        broker.dropConnections();
+        SUT.publish(PublishSpec.queue("target", "3".getBytes()));
+
+        assertThat(broker.getMessageCount("target"), is(3));
+    }
+
+    @Test
+    public void testPublishWaitsWhileBlocked() throws Exception {
+        val ch = SUT.createChannel();
+        ch.queueDeclare(new QueueSpec("target"));
+        val blocked = new ArrayBlockingQueue<String>(1);
+        SUT.addBlockedListener(new ConnectionBlockedListener() {
+            @Override
+            public void blocked(String reason) {
+                blocked.add(reason);
+            }
+
+            @Override
+            public void unblocked() {
+            }
+        });
+        broker.setBlocked("low on memory");
+
+        assertThat(blocked.poll(5, TimeUnit.SECONDS), is("low on memory"));
+        assertThat(SUT.isBlocked(), is(true));
+
+        val published = new CountDownLatch(1);
+        new Thread(() -> {
+            ch.publish(PublishSpec.queue("target", "hi".getBytes()));
+            published.countDown();
+        }).start();
+
+        assertThat(published.await(100, TimeUnit.MILLISECONDS), is(false));
+        broker.setBlocked(null);
+        assertThat(published.await(5, TimeUnit.SECONDS), is(true));
+        assertThat(SUT.isBlocked(), is(false));
+        assertThat(broker.getMessageCount("target"), is(1));
+    }
+
+    @Test(expectedExceptions = ConnectionBlockedException.class)
+    public void testPublishFailsWhileBlocked() {
+        SUT = Connections.createInMemory(new Config().withBlockedPublishPolicy(BlockedPublishPolicy.FAIL), broker);
+        val ch = SUT.createChannel();
+        ch.queueDeclare(new QueueSpec("target"));
+        broker.setBlocked("low on disk space");
+
+        ch.publish(PublishSpec.queue("target", "hi".getBytes()));
+    }
+
+    @Test(expectedExceptions = ConnectionBlockedException.class)
+    public void testPublishGivesUpAfterBlockedTimeout() {
+        SUT = Connections.createInMemory(new Config().withBlockedPublishTimeout(Duration.ofMillis(50)), broker);
+        val ch = SUT.createChannel();
+        ch.queueDeclare(new QueueSpec("target"));
+        broker.setBlocked("low on memory");
+
+        ch.publish(PublishSpec.queue("target", "hi".getBytes()));
+    }
+
+    @Test
+    public void testPublishGivesUpAtDeadline() {
+        val ch = SUT.createChannel();
+        ch.queueDeclare(new QueueSpec("target"));
+        broker.setAvailable(false);
+        broker.dropConnections();
+        Throwable error = null;
+
+        val start = System.nanoTime();
+        try {
+            ch.publish(PublishSpec.queue("target", "hi".getBytes()).withTimeout(Duration.ofMillis(100)));
+        } catch (Exception ex) {
+            error = ex;
+        }
+
+        // The connection can't be established, which is the last error
+        val timeout = Retryer.findTimeout(error);
+        assertThat(timeout != null && Retryer.isNetworkError(timeout), is(true));
+        assertThat(System.nanoTime() - start < Duration.ofSeconds(2).toNanos(), is(true));
+    }
+
+    @Test
+    public void testPublishTemplateGivesUpAtDeadline() {
+        val ch = SUT.createChannel();
+        broker.setAvailable(false);
+        val template = new PublishTemplate(PublishSpec.queue("target", null).withTimeout(Duration.ofMillis(100)));
+        Throwable error = null;
+
+        val start = System.nanoTime();
+        try {
+            ch.publish(template, "hi".getBytes());
+        } catch (Exception ex) {
+            error = ex;
+        }
+
+        // No channel is open, so the message takes the regular path that connects within the deadline
+        assertThat(Retryer.findTimeout(error) != null, is(true));
+        assertThat(System.nanoTime() - start < Duration.ofSeconds(2).toNanos(), is(true));
+    }
+
+    @Test
+    public void testPooledPublishTemplateGivesUpAtDeadline() {
+        broker.setAvailable(false);
+        val template = new PublishTemplate(PublishSpec.queue("target", null).withTimeout(Duration.ofMillis(100)));
+        Throwable error = null;
+
+        val start = System.nanoTime();
+        try {
+            SUT.publish(template, "hi".getBytes());
+        } catch (Exception ex) {
+            error = ex;
+        }
+
+        assertThat(Retryer.findTimeout(error) != null, is(true));
+        assertThat(System.nanoTime() - start < Duration.ofSeconds(2).toNanos(), is(true));
+    }
+
+    @Test
+    public void testPublishAsyncGivesUpAtDeadline() throws Exception {
+        val ch = SUT.createChannel();
+        ch.queueDeclare(new QueueSpec("target"));
+        broker.setAvailable(false);
+        broker.dropConnections();
+        Throwable error = null;
+
+        try {
+            ch.publishAsync(PublishSpec.queue("target", "hi".getBytes()).withTimeout(Duration.ofMillis(100)))
+                .get(2, TimeUnit.SECONDS);
+        } catch (ExecutionException ex) {
+            error = ex.getCause();
+        }
+
+        assertThat(Retryer.findTimeout(error) != null, is(true));
+    }
+
+    @Test(expectedExceptions = OperationTimeoutException.class)
+    public void testBlockedPublishGivesUpAtDeadline() {
+        val ch = SUT.createChannel();
+        ch.queueDeclare(new QueueSpec("target"));
+        broker.setBlocked("low on memory");
+
+        ch.publish(PublishSpec.queue("target", "hi".getBytes()).withTimeout(Duration.ofMillis(50)));
+    }
+
+    @Test
+    public void testClosingStopsSpoolDrainer() throws Exception {
+        val dir = Files.createTempDirectory("hamq-spool");
+        val ch = SUT.createChannel();
+        ch.queueDeclare(new QueueSpec("target"));
+        ch.spool(new SpoolSpec(dir));
+        broker.setBlocked("low on memory");
+        ch.publish(PublishSpec.queue("target", "hi".getBytes()));
+
+        // The drainer waits for the broker to unblock, but closing the channel stops it and keeps the message spooled
+        ch.close();
+        broker.setBlocked(null);
+
+        val drainers = Thread.getAllStackTraces().keySet().stream()
+            .filter(thread -> thread.getName().equals("hamq-spool-drainer"))
+            .count();
+        assertThat(drainers, is(0L));
+        assertThat(broker.getMessageCount("target"), is(0));
+        assertThat(new PublishSpool(new SpoolSpec(dir)).take().getMessage().getRoutingKey(), is("target"));
+    }
+}
@@ -1,16 +1,31 @@
 package io.buybrain.hamq;
 
+import com.rabbitmq.client.AMQP;
 import com.rabbitmq.client.AlreadyClosedException;
+import com.rabbitmq.client.ConfirmListener;
 import com.rabbitmq.client.Consumer;
 import com.rabbitmq.client.Envelope;
 import com.rabbitmq.client.ShutdownSignalException;
 import lombok.val;
+import org.mockito.ArgumentCaptor;
 import org.mockito.stubbing.Answer;
+import org.testng.SkipException;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import java.net.ConnectException;
 import java.net.SocketException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Function;
 
 import static java.lang.Integer.parseInt;
@@ -46,7 +61,8 @@ public class MockBackendTest {
             .doNothing()
             .when(backendChan).queueDeclare(eq("test_3"), anyBoolean(), anyBoolean(), anyBoolean(), anyMap());
 
-        // Declare a test queue with defaults
+        // Declare a test queue with defaults, twice
+        ch.queueDeclare(new QueueSpec("test_1"));
         ch.queueDeclare(new QueueSpec("test_1"));
         // Declare another test queue with other settings
         ch.queueDeclare(
@@ -62,16 +78,19 @@ public class MockBackendTest {
         val ordered = inOrder(backend, backendConn, backendChan);
         ordered.verify(backend).newConnection(any());
         ordered.verify(backendConn).newChannel();
-        ordered.verify(backendChan).queueDeclare("test_1", true, false, false, emptyMap());
+        ordered.verify(backendChan, times(2)).queueDeclare("test_1", true, false, false, emptyMap());
         ordered.verify(backendChan).queueDeclare("test_2", false, true, true, singletonMap("arg1", "val1"));
         ordered.verify(backendChan).queueDeclare("test_3", true, false, false, emptyMap());
         ordered.verify(backendChan).close();
         ordered.verify(backendConn).close();
         ordered.verify(backend).newConnection(any());
+        // The new connection should replay all distinct queue declarations it handled so far on a separate channel,
+        // only waiting for the last one
         ordered.verify(backendConn).newChannel();
-        // It should replay all queue declarations it handled so far
-        ordered.verify(backendChan).queueDeclare("test_1", true, false, false, emptyMap());
+        ordered.verify(backendChan).queueDeclareNoWait("test_1", true, false, false, emptyMap());
         ordered.verify(backendChan).queueDeclare("test_2", false, true, true, singletonMap("arg1", "val1"));
+        ordered.verify(backendChan).close();
+        ordered.verify(backendConn).newChannel();
         ordered.verify(backendChan).queueDeclare("test_3", true, false, false, emptyMap());
 
         ordered.verifyNoMoreInteractions();
@@ -138,4 +157,516 @@ public class MockBackendTest {
 
         assertThat(result, is(42 * 10));
     }
+
+    @Test
+    public void testPublisherConfirms() throws Exception {
+        val ch = SUT.createChannel();
+
+        val backendConn = mock(BackendConnection.class);
+        when(backend.newConnection(any())).thenReturn(backendConn);
+
+        val backendChan = mock(BackendChannel.class);
+        when(backendConn.newChannel()).thenReturn(backendChan);
+
+        // Sequence numbers start at 1 again after the channel is recreated
+        when(backendChan.getNextPublishSeqNo()).thenReturn(1L, 2L, 3L, 4L, 1L, 2L);
+
+        doThrow(new SocketException("Socket broke"))
+            .doNothing()
+            .when(backendChan).basicPublish(eq(""), eq("d"), anyBoolean(), any(), any());
+
+        ch.confirmSelect(new ConfirmSpec());
+
+        val listener = ArgumentCaptor.forClass(ConfirmListener.class);
+        verify(backendChan).addConfirmListener(listener.capture());
+
+        ch.publish(PublishSpec.queue("a", "1".getBytes()));
+        ch.publish(PublishSpec.queue("b", "2".getBytes()));
+        ch.publish(PublishSpec.queue("c", "3".getBytes()));
+
+        // The broker confirms the first two messages in one go
+        listener.getValue().handleAck(2, true);
+
+        // Publishing the next message fails, which should republish the unconfirmed message before retrying
+        ch.publish(PublishSpec.queue("d", "4".getBytes()));
+
+        val ordered = inOrder(backendChan);
+        ordered.verify(backendChan).confirmSelect();
+        ordered.verify(backendChan).basicPublish(eq(""), eq("a"), anyBoolean(), any(), any());
+        ordered.verify(backendChan).basicPublish(eq(""), eq("b"), anyBoolean(), any(), any());
+        ordered.verify(backendChan).basicPublish(eq(""), eq("c"), anyBoolean(), any(), any());
+        ordered.verify(backendChan).basicPublish(eq(""), eq("d"), anyBoolean(), any(), any());
+        ordered.verify(backendChan).close();
+        ordered.verify(backendChan).confirmSelect();
+        ordered.verify(backendChan).basicPublish(eq(""), eq("c"), anyBoolean(), any(), any());
+        ordered.verify(backendChan).basicPublish(eq(""), eq("d"), anyBoolean(), any(), any());
+
+        verify(backendChan, times(1)).basicPublish(eq(""), eq("a"), anyBoolean(), any(), any());
+    }
+
+    @Test
+    public void testPublishAsync() throws Exception {
+        val ch = SUT.createChannel();
+
+        val backendConn = mock(BackendConnection.class);
+        when(backend.newConnection(any())).thenReturn(backendConn);
+
+        val backendChan = mock(BackendChannel.class);
+        when(backendConn.newChannel()).thenReturn(backendChan);
+
+        doThrow(new SocketException("Socket broke"))
+            .doNothing()
+            .when(backendChan).basicPublish(eq(""), eq("target"), anyBoolean(), any(), any());
+
+        // The first attempt fails, the retry is scheduled in the background and the future completes afterwards
+        val future = ch.publishAsync(PublishSpec.queue("target", "hi".getBytes()));
+        future.get(10, TimeUnit.SECONDS);
+
+        verify(backendChan, times(2)).basicPublish(eq(""), eq("target"), anyBoolean(), any(), any());
+        verify(backendConn).close();
+    }
+
+    @Test
+    public void testPublishBatchRetriesRemainder() throws Exception {
+        val ch = SUT.createChannel();
+
+        val backendConn = mock(BackendConnection.class);
+        when(backend.newConnection(any())).thenReturn(backendConn);
+
+        val backendChan = mock(BackendChannel.class);
+        when(backendConn.newChannel()).thenReturn(backendChan);
+
+        doThrow(new SocketException("Socket broke"))
+            .doNothing()
+            .when(backendChan).basicPublish(eq(""), eq("b"), anyBoolean(), any(), any());
+
+        ch.publishBatch(Arrays.asList(
+            PublishSpec.queue("a", "1".getBytes()),
+            PublishSpec.queue("b", "2".getBytes()),
+            PublishSpec.queue("c", "3".getBytes())
+        ));
+
+        val ordered = inOrder(backendConn, backendChan);
+        ordered.verify(backendConn).newChannel();
+        ordered.verify(backendChan).basicPublish(eq(""), eq("a"), anyBoolean(), any(), any());
+        ordered.verify(backendChan).basicPublish(eq(""), eq("b"), anyBoolean(), any(), any());
+        ordered.verify(backendChan).close();
+        ordered.verify(backendConn).close();
+        ordered.verify(backendConn).newChannel();
+        // Only the messages that were not written yet should be published again
+        ordered.verify(backendChan).basicPublish(eq(""), eq("b"), anyBoolean(), any(), any());
+        ordered.verify(backendChan).basicPublish(eq(""), eq("c"), anyBoolean(), any(), any());
+        ordered.verifyNoMoreInteractions();
+    }
+
+    @Test
+    public void testConcurrentConsumerKeepsOrderPerKey() throws Exception {
+        val ch = SUT.createChannel();
+
+        val backendConn = mock(BackendConnection.class);
+        when(backend.newConnection(any())).thenReturn(backendConn);
+
+        val backendChan = mock(BackendChannel.class);
+        when(backendConn.newChannel()).thenReturn(backendChan);
+
+        doAnswer(invocation -> {
+            Consumer consumer = (Consumer) invocation.getArguments()[5];
+            for (int i = 1; i <= 20; i++) {
+                val routingKey = i % 2 == 0 ? "even" : "odd";
+                consumer.handleDelivery("t1", new Envelope(i, false, "", routingKey), null, Integer.toString(i).getBytes());
+            }
+            return null;
+        }).when(backendChan).basicConsume(eq("source"), anyString(), anyBoolean(), anyBoolean(), anyMap(), any());
+
+        val processed = Collections.synchronizedList(new ArrayList<Integer>());
+        val done = new CountDownLatch(20);
+
+        ch.consume(
+            new ConsumeSpec("source", delivery -> {
+                processed.add(parseInt(delivery.getBodyAsString()));
+                delivery.ack();
+                done.countDown();
+            })
+                .withConcurrency(2)
+                .withOrderingByRoutingKey()
+        );
+
+        assertThat(done.await(10, TimeUnit.SECONDS), is(true));
+
+        // Deliveries with the same routing key should have been processed in delivery order
+        List<Integer> odd = new ArrayList<>();
+        List<Integer> even = new ArrayList<>();
+        processed.forEach(i -> (i % 2 == 0 ? even : odd).add(i));
+        assertThat(odd, is(Arrays.asList(1, 3, 5, 7, 9, 11, 13, 15, 17, 19)));
+        assertThat(even, is(Arrays.asList(2, 4, 6, 8, 10, 12, 14, 16, 18, 20)));
+        verify(backendChan, times(20)).basicAck(anyLong());
+    }
+
+    @Test
+    public void testPooledPublishRecovers() throws Exception {
+        val backendConn = mock(BackendConnection.class);
+        when(backend.newConnection(any())).thenReturn(backendConn);
+
+        val backendChan = mock(BackendChannel.class);
+        when(backendConn.newChannel()).thenReturn(backendChan);
+
+        doThrow(new ShutdownSignalException(false, false, null, null))
+            .doThrow(new SocketException("Socket broke"))
+            .doNothing()
+            .when(backendChan).basicPublish(eq(""), eq("target"), anyBoolean(), any(), any());
+
+        SUT.publish(
+            PublishSpec.queue("target", "hi".getBytes())
+                .withRetryPolicy(new RetryPolicy().withRetryAll(true).withInitialDelay(Duration.ofMillis(10)))
+        );
+
+        val ordered = inOrder(backend, backendConn, backendChan);
+        ordered.verify(backend).newConnection(any());
+        ordered.verify(backendConn).newChannel();
+        ordered.verify(backendChan).basicPublish(eq(""), eq("target"), anyBoolean(), any(), any());
+        // A channel error only requires a new channel
+        ordered.verify(backendChan).close();
+        ordered.verify(backendConn).newChannel();
+        ordered.verify(backendChan).basicPublish(eq(""), eq("target"), anyBoolean(), any(), any());
+        // A network error requires a new connection as well
+        ordered.verify(backendChan).close();
+        ordered.verify(backendConn).close();
+        ordered.verify(backend).newConnection(any());
+        ordered.verify(backendConn).newChannel();
+        ordered.verify(backendChan).basicPublish(eq(""), eq("target"), anyBoolean(), any(), any());
+        ordered.verifyNoMoreInteractions();
+    }
+
+    @Test
+    public void testChannelsSpreadOverConnections() throws Exception {
+        SUT = new Connection(new Config().withConnectionCount(2), backend);
+
+        val backendConn1 = mock(BackendConnection.class);
+        val backendConn2 = mock(BackendConnection.class);
+        val backendConn3 = mock(BackendConnection.class);
+        when(backend.newConnection(any())).thenReturn(backendConn1, backendConn2, backendConn3);
+
+        val backendChan1 = mock(BackendChannel.class);
+        val backendChan2 = mock(BackendChannel.class);
+        when(backendConn1.newChannel()).thenReturn(backendChan1);
+        when(backendConn2.newChannel()).thenReturn(backendChan2);
+        when(backendConn3.newChannel()).thenReturn(backendChan1);
+
+        doThrow(new SocketException("Socket broke"))
+            .doNothing()
+            .when(backendChan1).queueDeclare(eq("test_3"), anyBoolean(), anyBoolean(), anyBoolean(), anyMap());
+
+        val ch1 = SUT.createChannel();
+        val ch2 = SUT.createChannel();
+        ch1.queueDeclare(new QueueSpec("test_1"));
+        ch2.queueDeclare(new QueueSpec("test_2"));
+        // This one fails with a network error on the connection of the first channel
+        ch1.queueDeclare(new QueueSpec("test_3"));
+
+        // Both channels got their own connection, and only the broken one was replaced
+        verify(backendChan2).queueDeclare("test_2", true, false, false, emptyMap());
+        verify(backendChan1, times(2)).queueDeclare("test_1", true, false, false, emptyMap());
+        verify(backendChan1, times(2)).queueDeclare("test_3", true, false, false, emptyMap());
+        verify(backendConn1).close();
+        verify(backendConn2, never()).close();
+        verify(backend, times(3)).newConnection(any());
+    }
+
+    @Test
+    public void testTopologyRestoredOncePerReconnect() throws Exception {
+        val ch1 = SUT.createChannel();
+        val ch2 = SUT.createChannel();
+
+        val backendConn1 = mock(BackendConnection.class);
+        val backendConn2 = mock(BackendConnection.class);
+        when(backend.newConnection(any())).thenReturn(backendConn1, backendConn2);
+
+        val backendChan1 = mock(BackendChannel.class);
+        val backendChan2 = mock(BackendChannel.class);
+        when(backendConn1.newChannel()).thenReturn(backendChan1);
+        when(backendConn2.newChannel()).thenReturn(backendChan2);
+
+        ch1.queueDeclare(new QueueSpec("test_1"));
+        ch2.queueDeclare(new QueueSpec("test_2"));
+
+        // Both channels run into the same broken connection
+        doThrow(new SocketException("Socket broke"))
+            .when(backendChan1).basicPublish(anyString(), anyString(), anyBoolean(), any(), any());
+        ch1.publish(PublishSpec.queue("test_1", "hi".getBytes()));
+        ch2.publish(PublishSpec.queue("test_2", "hi".getBytes()));
+
+        // Only the first channel to notice reconnected, and the topology of both channels was restored once
+        verify(backend, times(2)).newConnection(any());
+        verify(backendConn1).close();
+        verify(backendConn2, never()).close();
+        verify(backendChan2).queueDeclareNoWait("test_1", true, false, false, emptyMap());
+        verify(backendChan2).queueDeclare("test_2", true, false, false, emptyMap());
+        verify(backendChan2).basicPublish(eq(""), eq("test_1"), anyBoolean(), any(), any());
+        verify(backendChan2).basicPublish(eq(""), eq("test_2"), anyBoolean(), any(), any());
+    }
+
+    @Test
+    public void testSoftErrorOnlyReopensChannel() throws Exception {
+        val ch1 = SUT.createChannel();
+        val ch2 = SUT.createChannel();
+
+        val backendConn = mock(BackendConnection.class);
+        when(backend.newConnection(any())).thenReturn(backendConn);
+
+        val backendChan1 = mock(BackendChannel.class);
+        val backendChan2 = mock(BackendChannel.class);
+        val backendChan3 = mock(BackendChannel.class);
+        when(backendConn.newChannel()).thenReturn(backendChan1, backendChan2, backendChan3);
+
+        // A channel-level error such as an inequivalent declaration, which is not retried by default
+        doThrow(mock(ShutdownSignalException.class))
+            .when(backendChan2).queueDeclare(eq("missing"), anyBoolean(), anyBoolean(), anyBoolean(), anyMap());
+
+        ch1.consume(new ConsumeSpec("source", Delivery::ack));
+        boolean failed = false;
+        try {
+            ch2.queueDeclare(new QueueSpec("missing"));
+        } catch (Exception ex) {
+            failed = true;
+        }
+        assertThat(failed, is(true));
+        ch2.queueDeclare(new QueueSpec("other"));
+
+        // Only the failing channel was replaced, the connection and the consumer on the other channel were left alone
+        verify(backendChan2).close();
+        verify(backendChan3).queueDeclare("other", true, false, false, emptyMap());
+        verify(backendConn, never()).close();
+        verify(backend, times(1)).newConnection(any());
+        verify(backendChan1, never()).basicCancel(anyString());
+        verify(backendChan1, never()).close();
+    }
+
+    @Test
+    public void testFailoverToNextNode() throws Exception {
+        val config = new Config().withAddresses(Arrays.asList(
+            new BrokerAddress("node1", 5672),
+            new BrokerAddress("node2", 5672)
+        ));
+        SUT = new Connection(config, backend);
+        val ch = SUT.createChannel();
+
+        val backendConn1 = mock(BackendConnection.class);
+        val backendConn2 = mock(BackendConnection.class);
+        val node1Up = new AtomicBoolean(true);
+        when(backend.newConnection(any())).thenAnswer(invocation -> {
+            val host = ((Config) invocation.getArguments()[0]).getHost();
+            if (host.equals("node2")) {
+                return backendConn2;
+            }
+            if (!node1Up.get()) {
+                throw new ConnectException("Connection refused");
+            }
+            return backendConn1;
+        });
+
+        val backendChan1 = mock(BackendChannel.class);
+        val backendChan2 = mock(BackendChannel.class);
+        when(backendConn1.newChannel()).thenReturn(backendChan1);
+        when(backendConn2.newChannel()).thenReturn(backendChan2);
+
+        ch.queueDeclare(new QueueSpec("test_1"));
+
+        // The first node goes down
+        node1Up.set(false);
+        doThrow(new SocketException("Socket broke"))
+            .when(backendChan1).basicPublish(anyString(), anyString(), anyBoolean(), any(), any());
+        ch.publish(PublishSpec.queue("test_1", "hi".getBytes()));
+
+        // The publish was retried on the second node, which got the topology as well. The lost node was not tried
+        // first when reconnecting.
+        verify(backendChan2).queueDeclare("test_1", true, false, false, emptyMap());
+        verify(backendChan2).basicPublish(eq(""), eq("test_1"), anyBoolean(), any(), any());
+        verify(backend, times(2)).newConnection(any());
+    }
+
+    @Test
+    public void testSeparatePublishConnection() throws Exception {
+        SUT = new Connection(new Config().withSeparatePublishConnections(true), backend);
+        val ch = SUT.createChannel();
+
+        val consumeConn = mock(BackendConnection.class);
+        val publishConn = mock(BackendConnection.class);
+        when(backend.newConnection(any())).thenReturn(consumeConn, publishConn);
+
+        val consumeChan = mock(BackendChannel.class);
+        val publishChan = mock(BackendChannel.class);
+        when(consumeConn.newChannel()).thenReturn(consumeChan);
+        when(publishConn.newChannel()).thenReturn(publishChan);
+
+        doThrow(new SocketException("Socket broke"))
+            .doNothing()
+            .when(publishChan).basicPublish(eq(""), eq("target"), anyBoolean(), any(), any());
+
+        ch.consume(new ConsumeSpec("source", Delivery::ack));
+        ch.publish(PublishSpec.queue("target", "hi".getBytes()));
+
+        verify(consumeChan, never()).basicPublish(any(), any(), anyBoolean(), any(), any());
+        verify(publishChan, times(2)).basicPublish(eq(""), eq("target"), anyBoolean(), any(), any());
+        // Only the publish connection was replaced, the consumer kept running
+        verify(publishConn).close();
+        verify(consumeConn, never()).close();
+        verify(consumeChan, never()).basicCancel(anyString());
+        verify(consumeChan, times(1))
+            .basicConsume(eq("source"), anyString(), anyBoolean(), anyBoolean(), anyMap(), any());
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+        val metrics = new RecordingMetrics();
+        SUT.setMetrics(metrics);
+        val ch = SUT.createChannel();
+
+        val backendConn = mock(BackendConnection.class);
+        when(backend.newConnection(any())).thenReturn(backendConn);
+
+        val backendChan = mock(BackendChannel.class);
+        when(backendConn.newChannel()).thenReturn(backendChan);
+
+        doThrow(new SocketException("Socket broke"))
+            .doNothing()
+            .when(backendChan).basicPublish(eq(""), eq("target"), anyBoolean(), any(), any());
+
+        ch.queueDeclare(new QueueSpec("target"));
+        ch.publish(PublishSpec.queue("target", "hi".getBytes()));
+
+        assertThat(metrics.getOperationAttempts(OperationType.PUBLISH), is(2L));
+        assertThat(metrics.getOperationLatency(OperationType.PUBLISH).getCount(), is(1L));
+        // The initial declaration, and the one replayed as part of the topology during the reset
+        assertThat(metrics.getOperationLatency(OperationType.QUEUE_DECLARE).getCount(), is(1L));
+        assertThat(metrics.getOperationLatency(OperationType.TOPOLOGY_RESTORE).getCount(), is(1L));
+        assertThat(metrics.getBackoff().getCount(), is(1L));
+        assertThat(metrics.getOperationsInBackoff(), is(0L));
+        assertThat(metrics.getConnectLatency().getCount(), is(2L));
+        assertThat(metrics.getResetLatency().getCount(), is(1L));
+        // The queue is restored by the connection, so the channel itself had nothing to replay
+        assertThat(metrics.getReplayed(), is(0L));
+    }
+
+    @Test
+    public void testPublishTemplate() throws Exception {
+        val ch = SUT.createChannel();
+
+        val backendConn = mock(BackendConnection.class);
+        when(backend.newConnection(any())).thenReturn(backendConn);
+
+        val backendChan = mock(BackendChannel.class);
+        when(backendConn.newChannel()).thenReturn(backendChan);
+
+        // The direct path is only taken on a channel that is already open
+        ch.queueDeclare(new QueueSpec("target"));
+        val template = new PublishTemplate(PublishSpec.queue("target", null).withHeader("h", "v"));
+        ch.publish(template, "1".getBytes());
+        ch.publish(template, "other", "2".getBytes());
+
+        val props = ArgumentCaptor.forClass(AMQP.BasicProperties.class);
+        verify(backendChan).basicPublish(eq(""), eq("target"), eq(false), props.capture(), eq("1".getBytes()));
+        verify(backendChan).basicPublish(eq(""), eq("other"), eq(false), props.capture(), eq("2".getBytes()));
+        // Both messages share the properties that were built once by the template
+        assertThat(props.getAllValues().get(0) == props.getAllValues().get(1), is(true));
+        assertThat(props.getValue().getHeaders().get("h"), is("v"));
+        assertThat(props.getValue().getDeliveryMode(), is(2));
+    }
+
+    @Test
+    public void testPublishTemplatePropagatesUnexpectedErrors() throws Exception {
+        val ch = SUT.createChannel();
+
+        val backendConn = mock(BackendConnection.class);
+        when(backend.newConnection(any())).thenReturn(backendConn);
+
+        val backendChan = mock(BackendChannel.class);
+        when(backendConn.newChannel()).thenReturn(backendChan);
+        doThrow(new IllegalStateException("Bug"))
+            .when(backendChan).basicPublish(anyString(), anyString(), anyBoolean(), any(), any());
+
+        ch.queueDeclare(new QueueSpec("target"));
+        Throwable error = null;
+        try {
+            ch.publish(new PublishTemplate(PublishSpec.queue("target", null)), "1".getBytes());
+        } catch (IllegalStateException ex) {
+            error = ex;
+        }
+
+        // Not a failure that publishing with retries recovers from, so it is not attempted again
+        assertThat(error != null, is(true));
+        verify(backendChan, times(1)).basicPublish(anyString(), anyString(), anyBoolean(), any(), any());
+    }
+
+    @Test
+    public void testVirtualThreadConsumerStaysSerial() throws Exception {
+        if (!VirtualThreads.isSupported()) {
+            throw new SkipException("Virtual threads are not supported by this JVM");
+        }
+        val conn = new Connection(new Config().withExecutionMode(ExecutionMode.VIRTUAL_THREADS), backend);
+        val ch = conn.createChannel();
+
+        val backendConn = mock(BackendConnection.class);
+        when(backend.newConnection(any())).thenReturn(backendConn);
+
+        val backendChan = mock(BackendChannel.class);
+        when(backendConn.newChannel()).thenReturn(backendChan);
+
+        val consumer = new AtomicReference<Consumer>();
+        doAnswer(invocation -> {
+            consumer.set((Consumer) invocation.getArguments()[5]);
+            return null;
+        }).when(backendChan).basicConsume(eq("source"), anyString(), anyBoolean(), anyBoolean(), anyMap(), any());
+
+        val active = new AtomicInteger();
+        val overlapped = new AtomicBoolean();
+        val processed = Collections.synchronizedList(new ArrayList<Integer>());
+        val done = new CountDownLatch(10);
+        ch.consume(new ConsumeSpec("source", delivery -> {
+            if (active.incrementAndGet() > 1) {
+                overlapped.set(true);
+            }
+            Thread.sleep(5);
+            processed.add(parseInt(delivery.getBodyAsString()));
+            active.decrementAndGet();
+            done.countDown();
+        }));
+
+        for (int i = 0; i < 10; i++) {
+            val envelope = new Envelope(i + 1, false, "", "source");
+            consumer.get().handleDelivery("t1", envelope, null, Integer.toString(i).getBytes());
+        }
+
+        assertThat(done.await(5, TimeUnit.SECONDS), is(true));
+        assertThat(overlapped.get(), is(false));
+        assertThat(processed, is(Arrays.asList(0, 1, 2, 3, 4, 5, 6, 7, 8, 9)));
+        ch.close();
+    }
+
+    @Test
+    public void testClosingBackendShutsDownSharedExecutor() {
+        if (!VirtualThreads.isSupported()) {
+            throw new SkipException("Virtual threads are not supported by this JVM");
+        }
+        val amqpBackend = new AMQPBackend();
+        val executor = amqpBackend.sharedExecutor();
+
+        // Every connection of the backend uses the same executor, also after reconnecting
+        assertThat(amqpBackend.sharedExecutor() == executor, is(true));
+        amqpBackend.close();
+
+        assertThat(executor.isShutdown(), is(true));
+    }
+
+    @Test
+    public void testClosingConnectionClosesBackend() throws Exception {
+        val backendConn = mock(BackendConnection.class);
+        when(backend.newConnection(any())).thenReturn(backendConn);
+        when(backendConn.newChannel()).thenReturn(mock(BackendChannel.class));
+        SUT.createChannel().queueDeclare(new QueueSpec("q"));
+
+        SUT.close();
+
+        verify(backendConn).close();
+        verify(backend).close();
+    }
 }
@@ -0,0 +1,45 @@
+package io.buybrain.hamq;
+
+import lombok.val;
+import org.testng.annotations.Test;
+
+import static java.util.Arrays.asList;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+public class NodeSelectorTest {
+    private static final BrokerAddress A = new BrokerAddress("a", 5672);
+    private static final BrokerAddress B = new BrokerAddress("b", 5672);
+    private static final BrokerAddress C = new BrokerAddress("c", 5672);
+
+    @Test
+    public void testConfiguredOrderInitially() {
+        val SUT = new NodeSelector(asList(A, B, C));
+
+        assertThat(SUT.ranked(), is(asList(A, B, C)));
+    }
+
+    @Test
+    public void testFastestHealthyNodeFirst() {
+        val SUT = new NodeSelector(asList(A, B, C));
+        SUT.recordSuccess(A, 3_000_000);
+        SUT.recordSuccess(C, 1_000_000);
+
+        // Measured nodes by connect time, followed by nodes that were never connected to
+        assertThat(SUT.ranked(), is(asList(C, A, B)));
+    }
+
+    @Test
+    public void testFailedNodesLast() {
+        val SUT = new NodeSelector(asList(A, B, C));
+        SUT.recordSuccess(A, 1_000_000);
+        SUT.recordFailure(A);
+        SUT.recordFailure(B);
+
+        assertThat(SUT.ranked(), is(asList(C, A, B)));
+
+        // Connecting again makes a node healthy
+        SUT.recordSuccess(B, 2_000_000);
+        assertThat(SUT.ranked(), is(asList(B, C, A)));
+    }
+}
@@ -0,0 +1,121 @@
+package io.buybrain.hamq;
+
+import lombok.val;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+public class PublishSpoolTest {
+    private Path dir;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("hamq-spool");
+    }
+
+    @Test
+    public void testReplayPendingMessages() throws Exception {
+        val spool = new PublishSpool(new SpoolSpec(dir));
+        spool.append(PublishSpec.queue("a", "1".getBytes()).withHeader("h", "v").withDurable(false));
+        spool.append(PublishSpec.queue("b", "2".getBytes()));
+        spool.append(PublishSpec.queue("c", "3".getBytes()));
+
+        // Only the first message gets published before the process stops
+        spool.complete(spool.take());
+        spool.close();
+
+        val reopened = new PublishSpool(new SpoolSpec(dir));
+        val first = reopened.take().getMessage();
+        val second = reopened.take().getMessage();
+
+        assertThat(first.getRoutingKey(), is("b"));
+        assertThat(first.getBody(), is("2".getBytes()));
+        assertThat(first.isDurable(), is(true));
+        assertThat(second.getRoutingKey(), is("c"));
+    }
+
+    @Test
+    public void testRetriedMessageIsTakenAgain() throws Exception {
+        val spool = new PublishSpool(new SpoolSpec(dir));
+        spool.append(PublishSpec.queue("a", "1".getBytes()));
+        spool.append(PublishSpec.queue("b", "2".getBytes()));
+
+        spool.retry(spool.take());
+
+        assertThat(spool.take().getMessage().getRoutingKey(), is("a"));
+        assertThat(spool.take().getMessage().getRoutingKey(), is("b"));
+    }
+
+    @Test(expectedExceptions = InterruptedException.class)
+    public void testTakeFailsOnceClosed() throws Exception {
+        val spool = new PublishSpool(new SpoolSpec(dir));
+        spool.append(PublishSpec.queue("a", "1".getBytes()));
+        spool.close();
+
+        spool.take();
+    }
+
+    @Test
+    public void testCompleteAfterCloseKeepsMessage() throws Exception {
+        val spool = new PublishSpool(new SpoolSpec(dir));
+        spool.append(PublishSpec.queue("a", "1".getBytes()));
+        val entry = spool.take();
+        spool.close();
+
+        spool.complete(entry);
+
+        val reopened = new PublishSpool(new SpoolSpec(dir));
+        assertThat(reopened.take().getMessage().getRoutingKey(), is("a"));
+    }
+
+    @Test
+    public void testSerializeRoundTrip() throws Exception {
+        val spec = new PublishSpec("exchange", "key", "body".getBytes())
+            .withHeader("h", "v")
+            .withMandatory(true)
+            .withDurable(false)
+            .withMessageId("id-1");
+
+        val result = PublishSpool.deserialize(PublishSpool.serialize(spec));
+
+        assertThat(result.getExchange(), is("exchange"));
+        assertThat(result.getRoutingKey(), is("key"));
+        assertThat(result.isMandatory(), is(true));
+        assertThat(result.isDurable(), is(false));
+        assertThat(result.getHeaders().get("h").toString(), is("v"));
+        assertThat(result.getBody(), is("body".getBytes()));
+        assertThat(result.getMessageId(), is("id-1"));
+    }
+
+    @Test
+    public void testDeletesPublishedSegments() throws Exception {
+        val spool = new PublishSpool(new SpoolSpec(dir).withSegmentBytes(64));
+        for (int i = 0; i < 10; i++) {
+            spool.append(PublishSpec.queue("q", new byte[20]));
+        }
+        for (int i = 0; i < 10; i++) {
+            spool.complete(spool.take());
+        }
+
+        // Only the segment that is currently being written to remains
+        assertThat(Files.list(dir).count(), is(1L));
+    }
+
+    @Test(expectedExceptions = SpoolFullException.class)
+    public void testOverflowFail() throws Exception {
+        val spool = new PublishSpool(
+            new SpoolSpec(dir)
+                .withSegmentBytes(64)
+                .withMaxBytes(128)
+                .withOverflowPolicy(SpoolOverflowPolicy.FAIL)
+        );
+        for (int i = 0; i < 10; i++) {
+            spool.append(PublishSpec.queue("q", new byte[20]));
+        }
+    }
+}
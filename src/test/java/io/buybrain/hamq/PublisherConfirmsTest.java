@@ -0,0 +1,61 @@
+package io.buybrain.hamq;
+
+import lombok.val;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.Collections;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+public class PublisherConfirmsTest {
+    private BackendChannel first;
+    private BackendChannel second;
+    private PublisherConfirms SUT;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        val conn = new InMemoryBroker().connect();
+        first = conn.newChannel();
+        second = conn.newChannel();
+        first.confirmSelect();
+        second.confirmSelect();
+        SUT = new PublisherConfirms();
+    }
+
+    @Test(expectedExceptions = ChannelReplacedException.class)
+    public void testPublishOnReplacedChannelFails() throws Exception {
+        SUT.attach(first);
+        SUT.attach(second);
+
+        val confirmation = new PublisherConfirms.Confirmation(PublishSpec.queue("a", "1".getBytes()));
+        SUT.publish(first, confirmation, confirmation.getSpec().toProperties());
+    }
+
+    @Test
+    public void testAttachReturnsUnconfirmedOfReplacedChannel() throws Exception {
+        SUT.attach(first);
+        val confirmation = new PublisherConfirms.Confirmation(PublishSpec.queue("a", "1".getBytes()));
+        SUT.publish(first, confirmation, confirmation.getSpec().toProperties());
+
+        assertThat(SUT.attach(second), is(Collections.singletonList(confirmation)));
+        // Late confirms of the replaced channel are ignored
+        SUT.ack(first, 1, false);
+        assertThat(confirmation.getFuture().isDone(), is(false));
+    }
+
+    @Test
+    public void testLateDetachKeepsReplacingChannel() throws Exception {
+        SUT.attach(first);
+        SUT.attach(second);
+        val confirmation = new PublisherConfirms.Confirmation(PublishSpec.queue("a", "1".getBytes()));
+        SUT.publish(second, confirmation, confirmation.getSpec().toProperties());
+
+        // The reset of the first channel detaches it only after the second one was attached
+        assertThat(SUT.detach(first).isEmpty(), is(true));
+        assertThat(SUT.isAttachedTo(second), is(true));
+        SUT.ack(second, 1, false);
+        assertThat(confirmation.getFuture().isDone(), is(true));
+    }
+}
@@ -0,0 +1,236 @@
+package io.buybrain.hamq;
+
+import lombok.val;
+import org.testng.annotations.Test;
+
+import java.net.SocketException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+public class RetryerTest {
+    @Test
+    public void testJitteredDelaysStayWithinBounds() {
+        val delays = new ArrayList<Long>();
+        val SUT = new Retryer();
+        SUT.setMetrics(new Metrics() {
+            @Override
+            public void recordBackoffStart(long delayMillis) {
+                delays.add(delayMillis);
+            }
+        });
+        val policy = new RetryPolicy()
+            .withInitialDelay(Duration.ofMillis(1))
+            .withMaxDelay(Duration.ofMillis(5))
+            .withDelayMultiplier(3)
+            .withJitter(true);
+        val failures = new AtomicInteger(20);
+
+        val attempts = SUT.performWithRetry(() -> {
+            if (failures.getAndDecrement() > 0) {
+                throw new SocketException();
+            }
+        }, policy);
+
+        assertThat(attempts, is(21));
+        assertThat(delays.size(), is(20));
+        for (val delay : delays) {
+            assertThat(delay >= 1 && delay <= 5, is(true));
+        }
+    }
+
+    @Test
+    public void testGiveUpWhenBudgetIsExhausted() {
+        val SUT = new Retryer();
+        SUT.setBudget(new TokenBucket(new RetryBudget(2, 0), () -> 0));
+        val policy = new RetryPolicy().withInitialDelay(Duration.ofMillis(1));
+        val attempts = new AtomicInteger();
+        Throwable error = null;
+
+        try {
+            SUT.performWithRetry(() -> {
+                if (attempts.incrementAndGet() > 0) {
+                    throw new SocketException();
+                }
+            }, policy);
+        } catch (Exception ex) {
+            error = ex;
+        }
+
+        // The initial attempt and one retry for every token
+        assertThat(error != null && Retryer.isNetworkError(error), is(true));
+        assertThat(attempts.get(), is(3));
+    }
+
+    @Test
+    public void testReplacedChannelRetriesAreBounded() {
+        val delays = new ArrayList<Long>();
+        val SUT = new Retryer();
+        SUT.setMetrics(new Metrics() {
+            @Override
+            public void recordBackoffStart(long delayMillis) {
+                delays.add(delayMillis);
+            }
+        });
+        val attempts = new AtomicInteger();
+        Throwable error = null;
+
+        try {
+            SUT.performWithRetry(() -> {
+                attempts.incrementAndGet();
+                throw new ChannelReplacedException();
+            }, new RetryPolicy());
+        } catch (Exception ex) {
+            error = ex;
+        }
+
+        assertThat(error != null, is(true));
+        assertThat(attempts.get(), is(11));
+        for (val delay : delays) {
+            assertThat(delay > 0, is(true));
+        }
+    }
+
+    @Test
+    public void testInternalRetriesIgnoreBudget() {
+        val SUT = new Retryer();
+        SUT.setBudget(new TokenBucket(new RetryBudget(1, 0), () -> 0));
+        val policy = new RetryPolicy().withInitialDelay(Duration.ofMillis(1)).withInternal(true);
+        val failures = new AtomicInteger(3);
+
+        val attempts = SUT.performWithRetry(() -> {
+            if (failures.getAndDecrement() > 0) {
+                throw new SocketException();
+            }
+        }, policy);
+
+        assertThat(attempts, is(4));
+    }
+
+    @Test
+    public void testBudgetRefills() {
+        val now = new AtomicLong();
+        val SUT = new TokenBucket(new RetryBudget(2, 10), now::get);
+
+        assertThat(SUT.tryAcquire(), is(true));
+        assertThat(SUT.tryAcquire(), is(true));
+        assertThat(SUT.tryAcquire(), is(false));
+
+        now.set(Duration.ofMillis(100).toNanos());
+        assertThat(SUT.tryAcquire(), is(true));
+        assertThat(SUT.tryAcquire(), is(false));
+    }
+
+    @Test(expectedExceptions = CircuitOpenException.class)
+    public void testCircuitOpensAfterThreshold() {
+        val SUT = new CircuitBreaker(new CircuitBreakerPolicy(2, Duration.ofSeconds(10)), () -> 0);
+
+        SUT.recordFailure();
+        SUT.check();
+        SUT.recordFailure();
+        SUT.check();
+    }
+
+    @Test
+    public void testCircuitClosesAfterCoolDownAndSuccess() {
+        val now = new AtomicLong();
+        val SUT = new CircuitBreaker(new CircuitBreakerPolicy(2, Duration.ofSeconds(10)), now::get);
+        SUT.recordFailure();
+        SUT.recordFailure();
+
+        // After the cool down, an attempt is let through
+        now.set(Duration.ofSeconds(10).toNanos());
+        SUT.check();
+
+        // A success resets the failure count
+        SUT.recordSuccess();
+        SUT.recordFailure();
+        SUT.check();
+    }
+
+    @Test
+    public void testOpenCircuitFailsFast() {
+        val SUT = new Retryer();
+        val breaker = new CircuitBreaker(new CircuitBreakerPolicy(1, Duration.ofMinutes(1)));
+        breaker.recordFailure();
+        SUT.setCircuitBreaker(breaker);
+        val attempts = new AtomicInteger();
+        Throwable error = null;
+
+        try {
+            SUT.performWithRetry(() -> {
+                attempts.incrementAndGet();
+            }, new RetryPolicy());
+        } catch (Exception ex) {
+            error = ex;
+        }
+
+        assertThat(error != null, is(true));
+        assertThat(attempts.get(), is(0));
+    }
+
+    @Test
+    public void testGiveUpAtDeadline() {
+        val SUT = new Retryer();
+        val policy = new RetryPolicy().withInitialDelay(Duration.ofMillis(10)).withTimeout(Duration.ofMillis(50));
+        val attempts = new AtomicInteger();
+        Throwable error = null;
+
+        val start = System.nanoTime();
+        try {
+            SUT.performWithRetry(() -> {
+                attempts.incrementAndGet();
+                throw new SocketException();
+            }, policy);
+        } catch (Exception ex) {
+            error = ex;
+        }
+
+        // The timeout carries the error of the last attempt
+        val timeout = Retryer.findTimeout(error);
+        assertThat(timeout != null && timeout.getCause() instanceof SocketException, is(true));
+        assertThat(attempts.get() > 1, is(true));
+        assertThat(System.nanoTime() - start < Duration.ofSeconds(1).toNanos(), is(true));
+    }
+
+    @Test
+    public void testNestedOperationsShareDeadline() {
+        val SUT = new Retryer();
+        val inner = new RetryPolicy().withInitialDelay(Duration.ofMillis(10)).withInternal(true);
+        Throwable error = null;
+
+        try {
+            SUT.withTimeout(Duration.ofMillis(50), () -> SUT.performWithRetry(() -> {
+                throw new SocketException();
+            }, inner));
+        } catch (Exception ex) {
+            error = ex;
+        }
+
+        assertThat(Retryer.findTimeout(error) != null, is(true));
+    }
+
+    @Test
+    public void testAsyncAttemptsDoNotBlockScheduler() throws Exception {
+        val SUT = new Retryer();
+        val release = new CountDownLatch(1);
+        val result = SUT.performAsync(() -> {
+            release.await();
+            return 42;
+        }, new RetryPolicy());
+
+        // Timers keep running while an attempt is blocked
+        val timer = new CountDownLatch(1);
+        SUT.getScheduler().schedule(timer::countDown, 1, TimeUnit.MILLISECONDS);
+        assertThat(timer.await(5, TimeUnit.SECONDS), is(true));
+
+        release.countDown();
+        assertThat(result.get(5, TimeUnit.SECONDS), is(42));
+    }
+}
@@ -0,0 +1,25 @@
+package io.buybrain.hamq;
+
+import lombok.val;
+import org.testng.annotations.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+public class TopologyRegistryTest {
+    @Test
+    public void testAutoDeletingDeclarations() {
+        val SUT = new TopologyRegistry();
+        SUT.add(new ExchangeSpec("durable", "direct"));
+        SUT.add(new ExchangeSpec("transient", "fanout").withAutoDelete(true));
+        SUT.add(new QueueSpec("orders"));
+        SUT.add(new QueueSpec("events").withAutoDelete(true));
+        SUT.add(new BindSpec("orders", "durable"));
+        SUT.add(new BindSpec("events", "durable"));
+        SUT.add(new BindSpec("orders", "transient"));
+
+        // Only the auto-delete exchange and queue, and the two bindings that involve them
+        assertThat(SUT.autoDeleting().size(), is(4));
+        assertThat(SUT.size(), is(7));
+    }
+}